@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.UserHandle;
+import android.util.LruCache;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide cache of application icons and labels, shared by the screens listing
+ * applications.
+ *
+ * Icons are accounted by the size of their bitmap and evicted in LRU order once the
+ * budget is reached, and the whole cache is trimmed when the system runs low on memory,
+ * so that the heap does not grow with the number of applications shown.
+ *
+ * Only the constant state of the icons is kept, each caller gets its own drawable so that
+ * bounds, state and callbacks are not shared between views. The entries of a package are
+ * forgotten when it changes, is replaced or removed.
+ */
+public class AppIconCache implements ComponentCallbacks2 {
+
+    // Fraction of the memory class of the process that icons may use.
+    private static final int ICONS_MEMORY_DIVIDER = 16;
+    private static final int MAX_LABELS = 512;
+
+    // Size accounted for drawables that are not backed by a bitmap.
+    private static final int DEFAULT_ICON_SIZE = 16 * 1024;
+
+    private static AppIconCache sInstance;
+
+    private static final class CachedIcon {
+        final Drawable.ConstantState state;
+        final int byteCount;
+
+        CachedIcon(Drawable.ConstantState state, int byteCount) {
+            this.state = state;
+            this.byteCount = byteCount;
+        }
+    }
+
+    private final Resources mResources;
+    private final LruCache<String, CachedIcon> mIcons;
+    private final LruCache<String, CharSequence> mLabels;
+
+    private int mDensityDpi;
+    private Locale mLocale;
+
+    public static synchronized AppIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppIconCache(Context context) {
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxIconBytes = am.getMemoryClass() * 1024 * 1024 / ICONS_MEMORY_DIVIDER;
+        mResources = context.getResources();
+        mIcons = new LruCache<String, CachedIcon>(maxIconBytes) {
+            @Override
+            protected int sizeOf(String key, CachedIcon icon) {
+                return icon.byteCount;
+            }
+        };
+        mLabels = new LruCache<String, CharSequence>(MAX_LABELS);
+        final Configuration config = context.getResources().getConfiguration();
+        mDensityDpi = config.densityDpi;
+        mLocale = config.locale;
+        context.registerComponentCallbacks(this);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getData() != null) {
+                    invalidatePackage(intent.getData().getSchemeSpecificPart());
+                }
+            }
+        }, UserHandle.ALL, filter, null, null);
+    }
+
+    /**
+     * Return the number of bytes used by the drawable, or an estimate of it.
+     */
+    public static int getByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getByteCount();
+            }
+        }
+        final int width = icon.getIntrinsicWidth();
+        final int height = icon.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            return width * height * 4;
+        }
+        return DEFAULT_ICON_SIZE;
+    }
+
+    private static String getKey(ApplicationInfo info) {
+        return info.packageName + ':' + info.uid;
+    }
+
+    /**
+     * Return the cached icon of the application, or null if it needs to be loaded.
+     */
+    public Drawable getIcon(ApplicationInfo info) {
+        final CachedIcon icon = mIcons.get(getKey(info));
+        return icon != null ? icon.state.newDrawable(mResources) : null;
+    }
+
+    /**
+     * Same as {@link ApplicationInfo#loadIcon}, but cached.
+     */
+    public Drawable loadIcon(ApplicationInfo info, PackageManager pm) {
+        final String key = getKey(info);
+        final CachedIcon cached = mIcons.get(key);
+        if (cached != null) {
+            return cached.state.newDrawable(mResources);
+        }
+        final Drawable icon = info.loadIcon(pm);
+        final Drawable.ConstantState state = icon != null ? icon.getConstantState() : null;
+        if (state == null) {
+            // Can't be shared, don't cache it.
+            return icon;
+        }
+        mIcons.put(key, new CachedIcon(state, getByteCount(icon)));
+        return state.newDrawable(mResources);
+    }
+
+    /**
+     * Same as {@link ApplicationInfo#loadLabel}, but cached.
+     */
+    public CharSequence loadLabel(ApplicationInfo info, PackageManager pm) {
+        final String key = getKey(info);
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = info.loadLabel(pm);
+            if (label != null) {
+                mLabels.put(key, label);
+            }
+        }
+        return label;
+    }
+
+    /**
+     * Forget the icons and labels of a package, typically because it changed.
+     */
+    public void invalidatePackage(String packageName) {
+        final String prefix = packageName + ':';
+        for (Map.Entry<String, CachedIcon> entry : mIcons.snapshot().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                mIcons.remove(entry.getKey());
+            }
+        }
+        for (Map.Entry<String, CharSequence> entry : mLabels.snapshot().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                mLabels.remove(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mIcons.evictAll();
+            mLabels.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mIcons.trimToSize(mIcons.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mIcons.evictAll();
+        mLabels.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Labels depend on the locale, and icons on the density.
+        synchronized (this) {
+            if (newConfig.densityDpi == mDensityDpi && newConfig.locale != null
+                    && newConfig.locale.equals(mLocale)) {
+                return;
+            }
+            mDensityDpi = newConfig.densityDpi;
+            mLocale = newConfig.locale;
+        }
+        mIcons.evictAll();
+        mLabels.evictAll();
+    }
+}
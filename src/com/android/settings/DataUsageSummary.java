@@ -27,6 +27,8 @@ import static android.net.NetworkPolicyManager.POLICY_NONE;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
 import static android.net.NetworkPolicyManager.computeLastCycleBoundary;
 import static android.net.NetworkPolicyManager.computeNextCycleBoundary;
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.net.NetworkTemplate.MATCH_MOBILE_3G_LOWER;
 import static android.net.NetworkTemplate.MATCH_MOBILE_4G;
 import static android.net.NetworkTemplate.MATCH_MOBILE_ALL;
@@ -99,6 +101,7 @@ import android.text.format.Time;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -131,6 +134,8 @@ import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
+import com.android.settings.net.NetworkHistoryCache;
+import com.android.settings.net.NetworkStatsRefresher;
 import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
@@ -234,6 +239,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private Spinner mCycleSpinner;
     private CycleAdapter mCycleAdapter;
     private TextView mCycleSummary;
+    private String mCycleTotalPhrase;
 
     private ChartDataUsageView mChart;
     private View mDisclaimer;
@@ -475,24 +481,43 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             }
         });
 
-        // kick off background task to update stats
-        new AsyncTask<Void, Void, Void>() {
+        // kick off background task to update stats, unless they were updated recently
+        if (!NetworkStatsRefresher.isRefreshNeeded()) {
+            return;
+        }
+        final NetworkTemplate template = mTemplate;
+        new AsyncTask<Void, Void, Boolean>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            protected Boolean doInBackground(Void... params) {
                 try {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
-                    mStatsService.forceUpdate();
+                    if (!NetworkStatsRefresher.refreshIfNeeded(mStatsService)) {
+                        return false;
+                    }
+                    if (template == null) {
+                        NetworkHistoryCache.invalidate();
+                        return true;
+                    }
+                    // only reload when the shown network received new data
+                    return NetworkHistoryCache.invalidateIfChanged(mStatsSession, template,
+                            FIELD_RX_BYTES | FIELD_TX_BYTES);
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
-                return null;
+                return false;
             }
 
             @Override
-            protected void onPostExecute(Void result) {
-                if (isAdded()) {
+            protected void onPostExecute(Boolean changed) {
+                if (!isAdded()) {
+                    return;
+                }
+                if (changed) {
                     updateBody();
+                } else {
+                    // the stats are the same, only their age changed
+                    updateCycleSummary();
                 }
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
@@ -1367,8 +1392,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
-        final String totalPhrase = Formatter.formatFileSize(context, totalBytes);
-        mCycleSummary.setText(totalPhrase);
+        mCycleTotalPhrase = Formatter.formatFileSize(context, totalBytes);
+        updateCycleSummary();
 
         if (isMobileTab(mCurrentTab) || TAB_3G.equals(mCurrentTab)
                 || TAB_4G.equals(mCurrentTab)) {
@@ -1385,6 +1410,25 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         ensureLayoutTransitions();
     }
 
+    /**
+     * Show the total of the cycle along with how long ago the stats were refreshed, when this
+     * process refreshed them.
+     */
+    private void updateCycleSummary() {
+        if (mCycleTotalPhrase == null) {
+            return;
+        }
+        final long refreshAge = NetworkStatsRefresher.getLastRefreshAge();
+        if (refreshAge < 0) {
+            mCycleSummary.setText(mCycleTotalPhrase);
+            return;
+        }
+        final String age = Utils.formatElapsedTime(getActivity(), refreshAge,
+                refreshAge < DateUtils.MINUTE_IN_MILLIS);
+        mCycleSummary.setText(getString(R.string.data_usage_total_refreshed_ago,
+                mCycleTotalPhrase, age));
+    }
+
     private final LoaderCallbacks<ChartData> mChartDataCallbacks = new LoaderCallbacks<
             ChartData>() {
         @Override
@@ -1682,7 +1726,14 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
             final int currentUserId = ActivityManager.getCurrentUser();
             final List<UserHandle> profiles = mUm.getUserProfiles();
+            final SparseBooleanArray profileUserIds = new SparseBooleanArray(profiles.size());
+            for (int i = 0; i < profiles.size(); i++) {
+                profileUserIds.put(profiles.get(i).getIdentifier(), true);
+            }
             final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+            // Collapse key of the users that are not profiles, looked up once per user
+            // rather than once per row.
+            final SparseIntArray otherUserKeys = new SparseIntArray();
 
             NetworkStats.Entry entry = null;
             final int size = stats != null ? stats.size() : 0;
@@ -1696,7 +1747,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 final int category;
                 final int userId = UserHandle.getUserId(uid);
                 if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
+                    if (profileUserIds.get(userId)) {
                         if (userId != currentUserId) {
                             // Add to a managed user item.
                             final int managedKey = UidDetailProvider.buildKeyForUser(userId);
@@ -1707,16 +1758,18 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                         collapseKey = uid;
                         category = AppItem.CATEGORY_APP;
                     } else {
-                        // If it is a removed user add it to the removed users' key
-                        final UserInfo info = mUm.getUserInfo(userId);
-                        if (info == null) {
-                            collapseKey = UID_REMOVED;
-                            category = AppItem.CATEGORY_APP;
-                        } else {
-                            // Add to other user item.
-                            collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                            category = AppItem.CATEGORY_USER;
+                        int userKey = otherUserKeys.get(userId, -1);
+                        if (userKey == -1) {
+                            // If it is a removed user add it to the removed users' key,
+                            // otherwise to the other user item.
+                            final UserInfo info = mUm.getUserInfo(userId);
+                            userKey = info == null ? UID_REMOVED
+                                    : UidDetailProvider.buildKeyForUser(userId);
+                            otherUserKeys.put(userId, userKey);
                         }
+                        collapseKey = userKey;
+                        category = userKey == UID_REMOVED ? AppItem.CATEGORY_APP
+                                : AppItem.CATEGORY_USER;
                     }
                 } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
                     collapseKey = uid;
@@ -1732,7 +1785,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             for (int i = 0; i < restrictedUidsMax; ++i) {
                 final int uid = restrictedUids[i];
                 // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
+                if (!profileUserIds.get(UserHandle.getUserId(uid))) {
                     continue;
                 }
 
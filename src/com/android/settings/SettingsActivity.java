@@ -35,6 +35,7 @@ import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.nfc.NfcAdapter;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.INetworkManagementService;
@@ -205,7 +206,7 @@ public class SettingsActivity extends Activity
 
     private static final String EMPTY_QUERY = "";
 
-    private static boolean sShowNoHomeNotice = false;
+    private static volatile boolean sShowNoHomeNotice = false;
 
     private String mFragmentClass;
 
@@ -353,9 +354,31 @@ public class SettingsActivity extends Activity
     private SearchResultsSummary mSearchResultsFragment;
     private String mSearchQuery;
 
+    /**
+     * Interface for the fragments showing the dashboard categories, to be told when they
+     * have been rebuilt.
+     */
+    public interface DashboardCategoriesListener {
+        public void onDashboardCategoriesChanged();
+    }
+
     // Categories
     private ArrayList<DashboardCategory> mCategories = new ArrayList<DashboardCategory>();
 
+    // Categories last built by any instance, shared until something they depend on changes.
+    // Only accessed from the main thread.
+    private static ArrayList<DashboardCategory> sCachedCategories;
+    private static BroadcastReceiver sCategoriesInvalidator;
+
+    // The cached categories that mCategories was copied from.
+    private ArrayList<DashboardCategory> mCategoriesSource;
+    private AsyncTask<Void, Void, ArrayList<DashboardCategory>> mBuildCategoriesTask;
+    private boolean mBuildCategoriesAgain;
+    private volatile boolean mShowNoHomeNotice;
+    private final ArrayList<DashboardCategoriesListener> mCategoriesListeners =
+            new ArrayList<DashboardCategoriesListener>();
+    private boolean mResumed;
+
     private static final String MSG_DATA_FORCE_REFRESH = "msg_data_force_refresh";
     private static final int MSG_BUILD_CATEGORIES = 1;
     private Handler mHandler = new Handler() {
@@ -365,7 +388,7 @@ public class SettingsActivity extends Activity
                 case MSG_BUILD_CATEGORIES: {
                     final boolean forceRefresh = msg.getData().getBoolean(MSG_DATA_FORCE_REFRESH);
                     if (forceRefresh) {
-                        buildDashboardCategories(mCategories);
+                        getDashboardCategories(true);
                     }
                 } break;
             }
@@ -381,13 +404,111 @@ public class SettingsActivity extends Activity
         return mSwitchBar;
     }
 
+    /**
+     * Return the dashboard categories. They are built on a background thread when needed,
+     * and the listeners are told once they have been; until then, the categories built last
+     * are returned, which may be none.
+     *
+     * @param forceRefresh whether the categories must be built again.
+     */
     public List<DashboardCategory> getDashboardCategories(boolean forceRefresh) {
-        if (forceRefresh || mCategories.size() == 0) {
-            buildDashboardCategories(mCategories);
+        if (forceRefresh) {
+            sCachedCategories = null;
+        }
+        if (sCachedCategories == null) {
+            buildDashboardCategoriesAsync();
+        } else if (mCategoriesSource != sCachedCategories) {
+            mCategoriesSource = sCachedCategories;
+            mCategories.clear();
+            mCategories.addAll(sCachedCategories);
         }
         return mCategories;
     }
 
+    public void addDashboardCategoriesListener(DashboardCategoriesListener listener) {
+        mCategoriesListeners.add(listener);
+    }
+
+    public void removeDashboardCategoriesListener(DashboardCategoriesListener listener) {
+        mCategoriesListeners.remove(listener);
+    }
+
+    private void buildDashboardCategoriesAsync() {
+        if (mBuildCategoriesTask != null) {
+            // Whatever is being built may already be out of date.
+            mBuildCategoriesAgain = true;
+            return;
+        }
+        registerCategoriesInvalidator(getApplicationContext());
+        mBuildCategoriesTask = new AsyncTask<Void, Void, ArrayList<DashboardCategory>>() {
+            // Only set in the background, read once the categories are delivered.
+            private int mBuiltHomeActivitiesCount;
+
+            @Override
+            protected ArrayList<DashboardCategory> doInBackground(Void... params) {
+                final ArrayList<DashboardCategory> categories =
+                        new ArrayList<DashboardCategory>();
+                mBuiltHomeActivitiesCount = getHomeActivitiesCount();
+                buildDashboardCategories(categories, mBuiltHomeActivitiesCount);
+                return categories;
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<DashboardCategory> categories) {
+                mBuildCategoriesTask = null;
+                if (isDestroyed()) {
+                    return;
+                }
+                if (mBuildCategoriesAgain) {
+                    mBuildCategoriesAgain = false;
+                    buildDashboardCategoriesAsync();
+                    return;
+                }
+                mHomeActivitiesCount = mBuiltHomeActivitiesCount;
+                sCachedCategories = categories;
+                mCategoriesSource = categories;
+                mCategories.clear();
+                mCategories.addAll(categories);
+                for (int i = 0; i < mCategoriesListeners.size(); i++) {
+                    mCategoriesListeners.get(i).onDashboardCategoriesChanged();
+                }
+                if (mShowNoHomeNotice && mResumed) {
+                    mShowNoHomeNotice = false;
+                    sShowNoHomeNotice = false;
+                    NoHomeDialogFragment.show(SettingsActivity.this);
+                }
+            }
+        };
+        mBuildCategoriesTask.execute();
+    }
+
+    /**
+     * Drop the cached categories when the packages, users or NFC state they were built
+     * for change. Data usage support is only probed at boot, so it is not listened to.
+     */
+    private static void registerCategoriesInvalidator(Context appContext) {
+        if (sCategoriesInvalidator != null) {
+            return;
+        }
+        sCategoriesInvalidator = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                sCachedCategories = null;
+            }
+        };
+        final IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        appContext.registerReceiver(sCategoriesInvalidator, packageFilter);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_USER_ADDED);
+        filter.addAction(Intent.ACTION_USER_REMOVED);
+        filter.addAction(NfcAdapter.ACTION_ADAPTER_STATE_CHANGED);
+        appContext.registerReceiver(sCategoriesInvalidator, filter);
+    }
+
     @Override
     public boolean onPreferenceStartFragment(PreferenceFragment caller, Preference pref) {
         // Override the fragment title for Wallpaper settings
@@ -417,6 +538,7 @@ public class SettingsActivity extends Activity
             Message msg = new Message();
             msg.what = MSG_BUILD_CATEGORIES;
             msg.getData().putBoolean(MSG_DATA_FORCE_REFRESH, forceRefresh);
+            mHandler.sendMessage(msg);
         }
     }
 
@@ -755,6 +877,7 @@ public class SettingsActivity extends Activity
     @Override
     public void onResume() {
         super.onResume();
+        mResumed = true;
 
         final int newHomeActivityCount = getHomeActivitiesCount();
         if (newHomeActivityCount != mHomeActivitiesCount) {
@@ -783,6 +906,7 @@ public class SettingsActivity extends Activity
     @Override
     public void onPause() {
         super.onPause();
+        mResumed = false;
 
         unregisterReceiver(mBatteryInfoReceiver);
         mDynamicIndexableContentMonitor.unregister();
@@ -971,14 +1095,17 @@ public class SettingsActivity extends Activity
     }
 
     /**
-     * Called when the activity needs its list of categories/tiles built.
+     * Called when the activity needs its list of categories/tiles built. Called on a
+     * background thread, since filtering the tiles queries several system services.
      *
      * @param categories The list in which to place the tiles categories.
+     * @param homeActivitiesCount The number of home activities, to decide on the Home tile.
      */
-    private void buildDashboardCategories(List<DashboardCategory> categories) {
+    private void buildDashboardCategories(List<DashboardCategory> categories,
+            int homeActivitiesCount) {
         categories.clear();
         loadCategoriesFromResource(R.xml.dashboard_categories, categories);
-        updateTilesList(categories);
+        updateTilesList(categories, homeActivitiesCount);
     }
 
     /**
@@ -1131,7 +1258,7 @@ public class SettingsActivity extends Activity
         }
     }
 
-    private void updateTilesList(List<DashboardCategory> target) {
+    private void updateTilesList(List<DashboardCategory> target, int homeActivitiesCount) {
         final boolean showDev = mDevelopmentPreferences.getBoolean(
                 DevelopmentSettings.PREF_SHOW,
                 android.os.Build.TYPE.equals("eng"));
@@ -1183,7 +1310,7 @@ public class SettingsActivity extends Activity
                         removeTile = true;
                     }
                 } else if (id == R.id.home_settings) {
-                    if (!updateHomeSettingTiles(tile)) {
+                    if (!updateHomeSettingTiles(tile, homeActivitiesCount)) {
                         removeTile = true;
                     }
                 } else if (id == R.id.user_settings) {
@@ -1244,7 +1371,7 @@ public class SettingsActivity extends Activity
         }
     }
 
-    private boolean updateHomeSettingTiles(DashboardTile tile) {
+    private boolean updateHomeSettingTiles(DashboardTile tile, int homeActivitiesCount) {
         // Once we decide to show Home settings, keep showing it forever
         SharedPreferences sp = getSharedPreferences(HomeSettings.HOME_PREFS, Context.MODE_PRIVATE);
         if (sp.getBoolean(HomeSettings.HOME_PREFS_DO_SHOW, false)) {
@@ -1252,15 +1379,14 @@ public class SettingsActivity extends Activity
         }
 
         try {
-            mHomeActivitiesCount = getHomeActivitiesCount();
-            if (mHomeActivitiesCount < 2) {
+            if (homeActivitiesCount < 2) {
                 // When there's only one available home app, omit this settings
                 // category entirely at the top level UI.  If the user just
                 // uninstalled the penultimate home app candidiate, we also
                 // now tell them about why they aren't seeing 'Home' in the list.
                 if (sShowNoHomeNotice) {
-                    sShowNoHomeNotice = false;
-                    NoHomeDialogFragment.show(this);
+                    // Shown once the categories are delivered on the main thread.
+                    mShowNoHomeNotice = true;
                 }
                 return false;
             } else {
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the labels and sizes of the app entries of {@link ApplicationsState},
+ * so that they can be shown right away the next time the process starts.
+ *
+ * A record is only used if the package still has the same version code and APK timestamp,
+ * and the locale is still the same. Its sizes are then used as they are, without computing
+ * them again.
+ */
+class AppEntriesSnapshot {
+    static final String TAG = "AppEntriesSnapshot";
+
+    private static final String FILE_NAME = "app_entries_snapshot";
+    private static final int VERSION = 1;
+
+    static class Record {
+        String packageName;
+        int versionCode;
+        long apkTimestamp;
+        String label;
+        String normalizedLabel;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+    }
+
+    final String mLocale;
+    final HashMap<String, Record> mRecords;
+
+    AppEntriesSnapshot(String locale, HashMap<String, Record> records) {
+        mLocale = locale;
+        mRecords = records;
+    }
+
+    /**
+     * Return the record of the application if it is still valid, null otherwise.
+     */
+    Record get(ApplicationInfo info) {
+        final Record record = mRecords.get(info.packageName);
+        if (record == null || record.versionCode != info.versionCode
+                || record.apkTimestamp != new File(info.sourceDir).lastModified()) {
+            return null;
+        }
+        return record;
+    }
+
+    boolean isSameLocale(String locale) {
+        return mLocale.equals(locale);
+    }
+
+    /**
+     * Return a copy of the snapshot without the record of the package. The snapshot itself
+     * is never modified, so that it can be read without holding a lock.
+     */
+    AppEntriesSnapshot without(String packageName) {
+        if (!mRecords.containsKey(packageName)) {
+            return this;
+        }
+        final HashMap<String, Record> records = new HashMap<String, Record>(mRecords);
+        records.remove(packageName);
+        return new AppEntriesSnapshot(mLocale, records);
+    }
+
+    static Record createRecord(ApplicationsState.AppEntry entry) {
+        final Record record = new Record();
+        record.packageName = entry.info.packageName;
+        record.versionCode = entry.info.versionCode;
+        record.apkTimestamp = entry.apkFile.lastModified();
+        record.label = entry.label;
+        record.normalizedLabel = entry.getNormalizedLabel();
+        record.size = entry.size;
+        record.internalSize = entry.internalSize;
+        record.externalSize = entry.externalSize;
+        record.cacheSize = entry.cacheSize;
+        record.codeSize = entry.codeSize;
+        record.dataSize = entry.dataSize;
+        record.externalCodeSize = entry.externalCodeSize;
+        record.externalDataSize = entry.externalDataSize;
+        record.externalCacheSize = entry.externalCacheSize;
+        return record;
+    }
+
+    static AtomicFile getFile(File dir) {
+        return new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Read the snapshot, returning null if there is none or it cannot be read.
+     */
+    static AppEntriesSnapshot read(AtomicFile file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final String locale = in.readUTF();
+            final int count = in.readInt();
+            final HashMap<String, Record> records = new HashMap<String, Record>(count);
+            for (int i=0; i<count; i++) {
+                final Record record = new Record();
+                record.packageName = in.readUTF();
+                record.versionCode = in.readInt();
+                record.apkTimestamp = in.readLong();
+                record.label = in.readUTF();
+                record.normalizedLabel = in.readUTF();
+                record.size = in.readLong();
+                record.internalSize = in.readLong();
+                record.externalSize = in.readLong();
+                record.cacheSize = in.readLong();
+                record.codeSize = in.readLong();
+                record.dataSize = in.readLong();
+                record.externalCodeSize = in.readLong();
+                record.externalDataSize = in.readLong();
+                record.externalCacheSize = in.readLong();
+                records.put(record.packageName, record);
+            }
+            return new AppEntriesSnapshot(locale, records);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    static void write(AtomicFile file, String locale, List<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(locale);
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                final Record record = records.get(i);
+                out.writeUTF(record.packageName);
+                out.writeInt(record.versionCode);
+                out.writeLong(record.apkTimestamp);
+                out.writeUTF(record.label);
+                out.writeUTF(record.normalizedLabel);
+                out.writeLong(record.size);
+                out.writeLong(record.internalSize);
+                out.writeLong(record.externalSize);
+                out.writeLong(record.cacheSize);
+                out.writeLong(record.codeSize);
+                out.writeLong(record.dataSize);
+                out.writeLong(record.externalCodeSize);
+                out.writeLong(record.externalDataSize);
+                out.writeLong(record.externalCacheSize);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+}
@@ -22,6 +22,8 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.AppIconCache;
+
 import java.io.File;
 import java.text.Collator;
 import java.text.Normalizer;
@@ -30,7 +32,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -46,11 +52,44 @@ public class ApplicationsState {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        public void onEntriesChanged(ArrayList<ListChange> changes);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
     }
 
+    /**
+     * A change to the list of entries last given to the callbacks.  Changes are applied in
+     * order: REMOVED removes the entry at fromPosition, INSERTED inserts it at toPosition,
+     * and MOVED does both.
+     */
+    public static class ListChange {
+        public static final int INSERTED = 0;
+        public static final int REMOVED = 1;
+        public static final int MOVED = 2;
+
+        public final int type;
+        public final AppEntry entry;
+        public final int fromPosition;
+        public final int toPosition;
+
+        ListChange(int type, AppEntry entry, int fromPosition, int toPosition) {
+            this.type = type;
+            this.entry = entry;
+            this.fromPosition = fromPosition;
+            this.toPosition = toPosition;
+        }
+
+        public void applyTo(List<AppEntry> apps) {
+            if (type != INSERTED) {
+                apps.remove(fromPosition);
+            }
+            if (type != REMOVED) {
+                apps.add(toPosition, entry);
+            }
+        }
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -59,6 +98,9 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Max number of package size requests in flight at the same time.
+    static final int MAX_SIZE_REQUESTS = 4;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -116,12 +158,39 @@ public class ApplicationsState {
         String normalizedLabel;
 
         AppEntry(Context context, ApplicationInfo info, long id) {
+            this(context, info, id, null);
+        }
+
+        /**
+         * Copy of the fields the comparators look at, so that entries can be sorted while
+         * their sizes are updated.  Call with the lock of the entry held.
+         */
+        AppEntry(AppEntry entry) {
+            apkFile = entry.apkFile;
+            id = entry.id;
+            info = entry.info;
+            label = entry.label;
+            size = entry.size;
+            internalSize = entry.internalSize;
+            externalSize = entry.externalSize;
+        }
+
+        AppEntry(Context context, ApplicationInfo info, long id,
+                AppEntriesSnapshot.Record record) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+            if (record != null) {
+                // The label of an unchanged package does not need to be loaded again; the
+                // record is only valid if the APK is still there.
+                this.mounted = true;
+                this.label = record.label;
+                this.normalizedLabel = record.normalizedLabel;
+            } else {
+                ensureLabel(context);
+            }
         }
         
         void ensureLabel(Context context) {
@@ -131,7 +200,8 @@ public class ApplicationsState {
                     this.label = info.packageName;
                 } else {
                     this.mounted = true;
-                    CharSequence label = info.loadLabel(context.getPackageManager());
+                    CharSequence label = AppIconCache.getInstance(context).loadLabel(
+                            info, context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
             }
@@ -140,7 +210,7 @@ public class ApplicationsState {
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).loadIcon(this.info, pm);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +222,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).loadIcon(this.info, pm);
                     return true;
                 }
             }
@@ -279,10 +349,31 @@ public class ApplicationsState {
     final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
+    // Copies of mApplications and mAppEntries, replaced under mEntriesMap whenever those
+    // change and never modified, so that the rebuild, the icon loader and sumCacheSizes()
+    // iterate them without holding mEntriesMap.
+    volatile List<ApplicationInfo> mApplicationsCopy = new ArrayList<ApplicationInfo>();
+    volatile List<AppEntry> mAppEntriesCopy = new ArrayList<AppEntry>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    // Packages whose size is computed first, typically because they are visible.
+    // Synchronize on the set itself, it is updated by the main thread for each row bound.
+    final LinkedHashSet<String> mPrioritySizePkgs = new LinkedHashSet<String>();
+    // Max number of package size requests in flight, MAX_SIZE_REQUESTS unless benchmarked.
+    int mMaxSizeRequests = MAX_SIZE_REQUESTS;
+    // Packages whose size changed, delivered in one MSG_PACKAGE_SIZE_CHANGED.
+    final ArrayList<String> mSizeChangedPkgs = new ArrayList<String>();
+    // Packages added, once their entry is loaded, and removed since the last
+    // MSG_PACKAGE_LIST_CHANGED, applied to the lists of the sessions.
+    final LinkedHashSet<String> mAddedPkgs = new LinkedHashSet<String>();
+    final HashSet<String> mRemovedPkgs = new HashSet<String>();
     boolean mSessionsChanged;
 
+    // Snapshot of the entries saved by the last session.  Synchronize on mEntriesMap
+    // to protect access to it; it is only read and written by the background thread.
+    AppEntriesSnapshot mSnapshot;
+    boolean mSnapshotRead;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -373,12 +464,27 @@ public class ApplicationsState {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        s.handleRebuildComplete();
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
+                    ArrayList<AppEntry> added = new ArrayList<AppEntry>();
+                    HashSet<String> removed;
+                    synchronized (mEntriesMap) {
+                        removed = new HashSet<String>(mRemovedPkgs);
+                        mRemovedPkgs.clear();
+                        // Packages whose entry is not loaded yet are kept for the next time.
+                        Iterator<String> it = mAddedPkgs.iterator();
+                        while (it.hasNext()) {
+                            AppEntry entry = mEntriesMap.get(it.next());
+                            if (entry != null) {
+                                added.add(entry);
+                                it.remove();
+                            }
+                        }
+                    }
                     for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageListChanged();
+                        mActiveSessions.get(i).handlePackagesChanged(added, removed);
                     }
                 } break;
                 case MSG_PACKAGE_ICON_CHANGED: {
@@ -387,9 +493,19 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
+                    ArrayList<String> packageNames;
+                    synchronized (mEntriesMap) {
+                        packageNames = new ArrayList<String>(mSizeChangedPkgs);
+                        mSizeChangedPkgs.clear();
+                    }
                     for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
+                        mActiveSessions.get(i).handleSizesChanged(packageNames);
+                    }
+                    for (int i=0; i<mActiveSessions.size(); i++) {
+                        for (int j=0; j<packageNames.size(); j++) {
+                            mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
+                                    packageNames.get(j));
+                        }
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
@@ -475,6 +591,10 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        // The list the callbacks were last given, which changes are computed against.
+        ArrayList<AppEntry> mDeliveredAppList;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
@@ -537,11 +657,151 @@ public class ApplicationsState {
                 }
 
                 mRebuildAsync = true;
+                if (mRebuildResult != null) {
+                    mDeliveredAppList = mRebuildResult;
+                }
 
                 return mRebuildResult;
             }
         }
 
+        void handleRebuildComplete() {
+            ArrayList<AppEntry> apps;
+            synchronized (mRebuildSync) {
+                apps = mLastAppList;
+                mDeliveredAppList = apps;
+            }
+            mCallbacks.onRebuildComplete(apps);
+        }
+
+        /**
+         * Move the entries of the given packages to their new position in the list last
+         * delivered, after their sizes changed, instead of filtering and sorting everything
+         * again. Filters do not depend on sizes, so only the order can change.  Called on
+         * the main thread; the previous list is left untouched since it may still be in use.
+         */
+        void handleSizesChanged(List<String> packageNames) {
+            ArrayList<AppEntry> apps;
+            ArrayList<ListChange> changes;
+            synchronized (mRebuildSync) {
+                if (!canChangeLocked()) {
+                    return;
+                }
+                HashSet<String> changed = new HashSet<String>(packageNames);
+                ArrayList<AppEntry> moving = new ArrayList<AppEntry>();
+                for (int i=0; i<mLastAppList.size(); i++) {
+                    AppEntry entry = mLastAppList.get(i);
+                    if (changed.contains(entry.info.packageName)) {
+                        moving.add(entry);
+                    }
+                }
+                if (moving.size() == 0) {
+                    return;
+                }
+                apps = new ArrayList<AppEntry>(mLastAppList);
+                changes = new ArrayList<ListChange>();
+                if (!updateEntriesLocked(apps, changed, moving, changes)) {
+                    // Sizes of other entries changed since, either concurrently or in a
+                    // batch still pending; sort everything.
+                    apps = sortEntries(mLastAppList, mLastComparator);
+                    changes = null;
+                }
+                if (apps.equals(mLastAppList)) {
+                    return;
+                }
+                if (changes != null && moving.size() == 1) {
+                    ListChange removed = changes.get(0);
+                    ListChange inserted = changes.get(1);
+                    changes.clear();
+                    changes.add(new ListChange(ListChange.MOVED, inserted.entry,
+                            removed.fromPosition, inserted.toPosition));
+                }
+                mLastAppList = apps;
+                mDeliveredAppList = apps;
+            }
+            if (changes != null) {
+                mCallbacks.onEntriesChanged(changes);
+            } else {
+                mCallbacks.onRebuildComplete(apps);
+            }
+        }
+
+        /**
+         * Remove the entries of the removed packages from the list last delivered, and
+         * insert those of the added ones that pass the filter, instead of filtering and
+         * sorting everything again.  Called on the main thread.
+         */
+        void handlePackagesChanged(List<AppEntry> added, Set<String> removed) {
+            ArrayList<ListChange> changes = null;
+            synchronized (mRebuildSync) {
+                if (canChangeLocked()) {
+                    ArrayList<AppEntry> inserted = new ArrayList<AppEntry>();
+                    for (int i=0; i<added.size(); i++) {
+                        AppEntry entry = added.get(i);
+                        if (mLastFilter == null || mLastFilter.filterApp(entry.info)) {
+                            inserted.add(entry);
+                        }
+                    }
+                    ArrayList<AppEntry> apps = new ArrayList<AppEntry>(mLastAppList);
+                    changes = new ArrayList<ListChange>();
+                    if (updateEntriesLocked(apps, removed, inserted, changes)) {
+                        mLastAppList = apps;
+                        mDeliveredAppList = apps;
+                    } else {
+                        changes = null;
+                    }
+                }
+            }
+            if (changes == null) {
+                mCallbacks.onPackageListChanged();
+            } else if (changes.size() > 0) {
+                mCallbacks.onEntriesChanged(changes);
+            }
+        }
+
+        private boolean canChangeLocked() {
+            return mLastAppList != null && mLastAppList == mDeliveredAppList
+                    && mLastComparator != null && !mRebuildRequested;
+        }
+
+        /**
+         * Remove the entries of the given packages from the list, then insert the given
+         * entries at their sorted position, recording each change.  Returns false, with
+         * the list half updated, if the entries left are not sorted.
+         */
+        private boolean updateEntriesLocked(ArrayList<AppEntry> apps, Set<String> removed,
+                List<AppEntry> inserted, ArrayList<ListChange> changes) {
+            ArrayList<AppEntry> keys = getSortKeys(apps);
+            for (int i=apps.size()-1; i>=0; i--) {
+                AppEntry entry = apps.get(i);
+                if (removed.contains(entry.info.packageName)) {
+                    changes.add(new ListChange(ListChange.REMOVED, entry, i, -1));
+                    apps.remove(i);
+                    keys.remove(i);
+                }
+            }
+            for (int i=1; i<keys.size(); i++) {
+                if (mLastComparator.compare(keys.get(i-1), keys.get(i)) > 0) {
+                    return false;
+                }
+            }
+            for (int i=0; i<inserted.size(); i++) {
+                AppEntry entry = inserted.get(i);
+                AppEntry key;
+                synchronized (entry) {
+                    key = new AppEntry(entry);
+                }
+                int index = Collections.binarySearch(keys, key, mLastComparator);
+                if (index < 0) {
+                    index = -index-1;
+                }
+                keys.add(index, key);
+                apps.add(index, entry);
+                changes.add(new ListChange(ListChange.INSERTED, entry, -1, index));
+            }
+            return true;
+        }
+
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
@@ -563,32 +823,31 @@ public class ApplicationsState {
                 filter.init();
             }
             
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
+            List<ApplicationInfo> apps = mApplicationsCopy;
 
+            // Filter and load labels without holding mEntriesMap, so that the
+            // background loader and the size callbacks are not blocked meanwhile.
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
             if (DEBUG) Log.i(TAG, "Rebuilding...");
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = obtainEntry(info);
+                    synchronized (entry) {
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
                 }
             }
 
-            Collections.sort(filteredApps, comparator);
+            filteredApps = sortEntries(filteredApps, comparator);
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
                     if (!mRebuildAsync) {
                         mRebuildResult = filteredApps;
                         mRebuildSync.notifyAll();
@@ -613,6 +872,36 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Copy the fields the comparators look at, under the lock of each entry: the sizes
+     * are updated meanwhile by the package stats callback.
+     */
+    static ArrayList<AppEntry> getSortKeys(List<AppEntry> apps) {
+        ArrayList<AppEntry> keys = new ArrayList<AppEntry>(apps.size());
+        for (int i=0; i<apps.size(); i++) {
+            AppEntry entry = apps.get(i);
+            synchronized (entry) {
+                keys.add(new AppEntry(entry));
+            }
+        }
+        return keys;
+    }
+
+    static ArrayList<AppEntry> sortEntries(List<AppEntry> apps,
+            Comparator<AppEntry> comparator) {
+        ArrayList<AppEntry> keys = getSortKeys(apps);
+        HashMap<AppEntry, AppEntry> entries = new HashMap<AppEntry, AppEntry>(apps.size());
+        for (int i=0; i<apps.size(); i++) {
+            entries.put(keys.get(i), apps.get(i));
+        }
+        Collections.sort(keys, comparator);
+        ArrayList<AppEntry> sorted = new ArrayList<AppEntry>(keys.size());
+        for (int i=0; i<keys.size(); i++) {
+            sorted.add(entries.get(keys.get(i)));
+        }
+        return sorted;
+    }
+
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
         synchronized (mEntriesMap) {
@@ -640,6 +929,7 @@ public class ApplicationsState {
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            publishEntriesLocked();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -664,7 +954,11 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        publishApplicationsLocked();
+        // The sessions build their lists again when resumed.
+        mAddedPkgs.clear();
+        mRemovedPkgs.clear();
+        mComputingSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -688,24 +982,36 @@ public class ApplicationsState {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
         }
+        // Nobody shows the icons anymore; keep only those in the bounded AppIconCache.
+        for (int i=0; i<mAppEntries.size(); i++) {
+            AppEntry entry = mAppEntries.get(i);
+            synchronized (entry) {
+                entry.icon = null;
+            }
+        }
     }
 
     AppEntry getEntry(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        ApplicationInfo missingInfo = null;
         synchronized (mEntriesMap) {
             AppEntry entry = mEntriesMap.get(packageName);
             if (entry == null) {
                 for (int i=0; i<mApplications.size(); i++) {
                     ApplicationInfo info = mApplications.get(i);
                     if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
+                        missingInfo = info;
                         break;
                     }
                 }
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
+            if (missingInfo == null) {
+                return entry;
+            }
         }
+        // The entry is created outside of the lock, it looks at its APK.
+        return obtainEntry(missingInfo);
     }
     
     void ensureIcon(AppEntry entry) {
@@ -728,19 +1034,45 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Compute the size of the package before the others, if it is not known yet.  Called
+     * on the main thread for each row bound, so it does not wait for mEntriesMap; the size
+     * is only a hint here, the loader checks it again.
+     */
+    void prioritizeSize(AppEntry entry) {
+        if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
+            synchronized (mPrioritySizePkgs) {
+                mPrioritySizePkgs.add(entry.info.packageName);
+            }
+        }
+    }
+
+    void deprioritizeSize(AppEntry entry) {
+        synchronized (mPrioritySizePkgs) {
+            mPrioritySizePkgs.remove(entry.info.packageName);
+        }
+    }
+
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
+        List<AppEntry> entries = mAppEntriesCopy;
+        for (int i=entries.size()-1; i>=0; i--) {
+            AppEntry entry = entries.get(i);
+            synchronized (entry) {
+                sum += entry.cacheSize;
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
         }
         return sum;
     }
-    
+
+    void publishApplicationsLocked() {
+        mApplicationsCopy = new ArrayList<ApplicationInfo>(mApplications);
+    }
+
+    void publishEntriesLocked() {
+        mAppEntriesCopy = new ArrayList<AppEntry>(mAppEntries);
+    }
+
     int indexOfApplicationInfoLocked(String pkgName) {
         for (int i=mApplications.size()-1; i>=0; i--) {
             if (mApplications.get(i).packageName.equals(pkgName)) {
@@ -776,12 +1108,12 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                publishApplicationsLocked();
+                // The sessions are told once the entry, with its label, is loaded.
+                mAddedPkgs.add(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
             }
         } catch (NameNotFoundException e) {
@@ -789,19 +1121,28 @@ public class ApplicationsState {
     }
 
     void removePackage(String pkgName) {
+        AppIconCache.getInstance(mContext).invalidatePackage(pkgName);
         synchronized (mEntriesMap) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
+            if (mSnapshot != null) {
+                // The package changed: its sizes must be computed again.
+                mSnapshot = mSnapshot.without(pkgName);
+            }
+            mAddedPkgs.remove(pkgName);
             int idx = indexOfApplicationInfoLocked(pkgName);
             if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
             if (idx >= 0) {
+                mRemovedPkgs.add(pkgName);
                 AppEntry entry = mEntriesMap.get(pkgName);
                 if (DEBUG) Log.i(TAG, "removePackage: " + entry);
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    publishEntriesLocked();
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                publishApplicationsLocked();
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -824,18 +1165,111 @@ public class ApplicationsState {
         addPackage(pkgName);
     }
     
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
-        if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
-        if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
-        }
-        return entry;
+    /**
+     * Return the entry of the application. A missing entry is created, and its label loaded,
+     * without holding mEntriesMap, since both look at the APK. Must not be called with
+     * mEntriesMap held.
+     */
+    AppEntry obtainEntry(ApplicationInfo info) {
+        AppEntriesSnapshot snapshot;
+        long id;
+        synchronized (mEntriesMap) {
+            AppEntry entry = mEntriesMap.get(info.packageName);
+            if (entry != null) {
+                if (entry.info != info) {
+                    entry.info = info;
+                }
+                return entry;
+            }
+            snapshot = mSnapshot;
+            id = mCurId++;
+        }
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        AppEntriesSnapshot.Record record = snapshot != null ? snapshot.get(info) : null;
+        AppEntry newEntry = new AppEntry(mContext, info, id,
+                record != null && snapshot.isSameLocale(getLocale()) ? record : null);
+        if (record != null) {
+            applySnapshotSizes(newEntry, record);
+        }
+        synchronized (mEntriesMap) {
+            AppEntry entry = mEntriesMap.get(info.packageName);
+            if (entry != null) {
+                // Somebody else created it meanwhile.
+                return entry;
+            }
+            mEntriesMap.put(info.packageName, newEntry);
+            mAppEntries.add(newEntry);
+            publishEntriesLocked();
+            return newEntry;
+        }
+    }
+
+    /**
+     * Use the last known sizes of an unchanged package instead of computing them again.
+     * They are computed again when the package changes, since its entry is then recreated
+     * without a record, or when the entries are resumed again.
+     */
+    void applySnapshotSizes(AppEntry entry, AppEntriesSnapshot.Record record) {
+        if (record.size < 0) {
+            return;
+        }
+        synchronized (entry) {
+            entry.sizeStale = false;
+            entry.size = record.size;
+            entry.internalSize = record.internalSize;
+            entry.externalSize = record.externalSize;
+            entry.cacheSize = record.cacheSize;
+            entry.codeSize = record.codeSize;
+            entry.dataSize = record.dataSize;
+            entry.externalCodeSize = record.externalCodeSize;
+            entry.externalDataSize = record.externalDataSize;
+            entry.externalCacheSize = record.externalCacheSize;
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+        }
+    }
+
+    String getLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    void readSnapshotIfNeeded() {
+        synchronized (mEntriesMap) {
+            if (mSnapshotRead) {
+                return;
+            }
+        }
+        AppEntriesSnapshot snapshot = AppEntriesSnapshot.read(
+                AppEntriesSnapshot.getFile(mContext.getCacheDir()));
+        synchronized (mEntriesMap) {
+            mSnapshotRead = true;
+            mSnapshot = snapshot;
+        }
+    }
+
+    void writeSnapshot() {
+        ArrayList<AppEntriesSnapshot.Record> records = new ArrayList<AppEntriesSnapshot.Record>();
+        List<AppEntry> entries = mAppEntriesCopy;
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            synchronized (entry) {
+                if (entry.mounted && entry.label != null) {
+                    records.add(AppEntriesSnapshot.createRecord(entry));
+                }
+            }
+        }
+        String locale = getLocale();
+        AppEntriesSnapshot.write(AppEntriesSnapshot.getFile(mContext.getCacheDir()),
+                locale, records);
+        HashMap<String, AppEntriesSnapshot.Record> map =
+                new HashMap<String, AppEntriesSnapshot.Record>(records.size());
+        for (int i=0; i<records.size(); i++) {
+            map.put(records.get(i).packageName, records.get(i));
+        }
+        synchronized (mEntriesMap) {
+            mSnapshot = new AppEntriesSnapshot(locale, map);
+        }
     }
 
     // --------------------------------------------------------------
@@ -878,52 +1312,59 @@ public class ApplicationsState {
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                AppEntry entry;
                 synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
+                    entry = mEntriesMap.get(stats.packageName);
+                }
+                if (entry != null) {
+                    // The sizes are updated, and formatted, holding only the lock of the entry.
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
                         }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                    }
+                }
+                synchronized (mEntriesMap) {
+                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
+                    if (sizeChanged) {
+                        mSizeChangedPkgs.add(stats.packageName);
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_SIZE_CHANGED);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    mComputingSizePkgs.remove(stats.packageName);
+                    synchronized (mPrioritySizePkgs) {
+                        mPrioritySizePkgs.remove(stats.packageName);
+                    }
+                    if (!hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -935,8 +1376,39 @@ public class ApplicationsState {
             super(looper);
         }
 
+        boolean needsSize(AppEntry entry) {
+            // The sizes are written holding only the lock of the entry.
+            synchronized (entry) {
+                return entry.size == SIZE_UNKNOWN || entry.sizeStale;
+            }
+        }
+
+        void loadSizeIfNeededLocked(AppEntry entry, long now) {
+            if (!needsSize(entry)) {
+                return;
+            }
+            final String packageName = entry.info.packageName;
+            if (mComputingSizePkgs.contains(packageName)
+                    && entry.sizeLoadStart >= (now-20*1000)) {
+                // Still waiting for this one.
+                return;
+            }
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.add(packageName);
+            mPm.getPackageSizeInfo(packageName, mStatsObserver);
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            // Entries are created with the snapshot of the last session, if any.
+            readSnapshotIfNeeded();
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -956,6 +1428,7 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ENTRIES: {
                     int numDone = 0;
+                    ArrayList<ApplicationInfo> missing = new ArrayList<ApplicationInfo>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
                         for (int i=0; i<mApplications.size() && numDone<6; i++) {
@@ -968,11 +1441,22 @@ public class ApplicationsState {
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
                                 numDone++;
-                                getEntryLocked(info);
+                                missing.add(info);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    // Labels are loaded outside of the lock.
+                    for (int i=0; i<missing.size(); i++) {
+                        obtainEntry(missing.get(i));
+                    }
+                    synchronized (mEntriesMap) {
+                        if (!mAddedPkgs.isEmpty()
+                                && !mMainHandler.hasMessages(
+                                        MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+                        }
+                    }
 
                     if (numDone >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
@@ -982,25 +1466,23 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    List<AppEntry> entries = mAppEntriesCopy;
+                    // Icons are loaded holding only the lock of their entry.
+                    for (int i=0; i<entries.size() && numDone<2; i++) {
+                        AppEntry entry = entries.get(i);
+                        if (entry.icon == null || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1014,42 +1496,56 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    boolean allSizesComputed = false;
+                    ArrayList<String> priorityPkgs;
+                    synchronized (mPrioritySizePkgs) {
+                        priorityPkgs = new ArrayList<String>(mPrioritySizePkgs);
+                    }
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
                         long now = SystemClock.uptimeMillis();
+
+                        // Visible entries first, then the others in order, with up to
+                        // mMaxSizeRequests requests in flight.
+                        for (int i=0; i<priorityPkgs.size(); i++) {
+                            String packageName = priorityPkgs.get(i);
+                            if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                                break;
+                            }
+                            AppEntry entry = mEntriesMap.get(packageName);
+                            if (entry != null) {
+                                loadSizeIfNeededLocked(entry, now);
+                            }
+                        }
+                        boolean needSizes = false;
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                            if (needsSize(entry)) {
+                                needSizes = true;
+                                if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                                    break;
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                loadSizeIfNeededLocked(entry, now);
                             }
                         }
+                        if (needSizes || !mComputingSizePkgs.isEmpty()) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
+                            allSizesComputed = true;
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (allSizesComputed) {
+                        // Everything is up to date, save it for the next session.
+                        writeSnapshot();
+                    }
                 } break;
             }
         }
@@ -730,6 +730,24 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onEntriesChanged(ArrayList<ApplicationsState.ListChange> changes) {
+            if (mBaseEntries == null) {
+                // Still waiting for the list, which will have the changes.
+                return;
+            }
+            // The prefix filter reads the current list on another thread: change a copy.
+            ArrayList<ApplicationsState.AppEntry> entries
+                    = new ArrayList<ApplicationsState.AppEntry>(mBaseEntries);
+            for (int i=0; i<changes.size(); i++) {
+                changes.get(i).applyTo(entries);
+            }
+            mBaseEntries = entries;
+            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
         @Override
         public void onPackageListChanged() {
             rebuild(false);
@@ -749,14 +767,8 @@ public class ManageApplications extends Fragment implements
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
+                    // When sorting by size, the session already moved the entry
+                    // to its new position through onEntriesChanged().
                     mTab.updateStorageUsage();
                     return;
                 }
@@ -805,6 +817,7 @@ public class ManageApplications extends Fragment implements
                     holder.appIcon.setImageDrawable(entry.icon);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
+                mState.prioritizeSize(entry);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
                     holder.disabled.setVisibility(View.VISIBLE);
                     holder.disabled.setText(R.string.not_installed);
@@ -835,6 +848,10 @@ public class ManageApplications extends Fragment implements
         @Override
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
+            AppViewHolder holder = (AppViewHolder) view.getTag();
+            if (holder != null && holder.entry != null) {
+                mState.deprioritizeSize(holder.entry);
+            }
         }
     }
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads the process stats over a duration on a background thread.
+ *
+ * Loaded stats are kept per duration for STATS_TTL, so that switching between durations, or
+ * coming back to the screen, does not read and decode them again. Only the stats of the
+ * MAX_CACHED_STATS most recently used durations are kept, and expired stats are dropped. The entries of the
+ * foreground, background and cached tabs are computed along with the stats, so that
+ * switching tabs does not need to go through all processes again either.
+ */
+public class ProcessStatsLoader extends AsyncTaskLoader<ProcessStatsLoader.LoadedStats> {
+    static final String TAG = "ProcessStatsLoader";
+
+    static final long STATS_TTL = 2*60*1000;
+    static final int MAX_CACHED_STATS = 2;
+
+    /**
+     * The entries of one tab, and the totals they were computed with.
+     */
+    static class Entries {
+        final ProcessStats.ProcessDataCollection totals;
+        final ArrayList<ProcStatsEntry> entries;
+
+        Entries(ProcessStats.ProcessDataCollection totals, ArrayList<ProcStatsEntry> entries) {
+            this.totals = totals;
+            this.entries = entries;
+        }
+    }
+
+    static class LoadedStats {
+        final long duration;
+        final ProcessStats stats;
+        final int memState;
+        final long loadTime;
+
+        private final HashMap<String, Entries> mEntries = new HashMap<String, Entries>();
+
+        LoadedStats(long duration, ProcessStats stats, int memState) {
+            this.duration = duration;
+            this.stats = stats;
+            this.memState = memState;
+            this.loadTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isFresh() {
+            return SystemClock.elapsedRealtime() - loadTime < STATS_TTL;
+        }
+
+        private static String getKey(int statsType, boolean showSystem, boolean useUss,
+                int memRegion) {
+            return statsType + ":" + showSystem + ":" + useUss + ":" + memRegion;
+        }
+
+        Entries getEntries(int statsType, boolean showSystem, boolean useUss, int memRegion) {
+            synchronized (mEntries) {
+                return mEntries.get(getKey(statsType, showSystem, useUss, memRegion));
+            }
+        }
+
+        void putEntries(int statsType, boolean showSystem, boolean useUss, int memRegion,
+                Entries entries) {
+            synchronized (mEntries) {
+                mEntries.put(getKey(statsType, showSystem, useUss, memRegion), entries);
+            }
+        }
+    }
+
+    // Loaded stats by duration, the least recently used first.
+    private static final LinkedHashMap<Long, LoadedStats> sCache =
+            new LinkedHashMap<Long, LoadedStats>(MAX_CACHED_STATS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, LoadedStats> eldest) {
+            return size() > MAX_CACHED_STATS;
+        }
+    };
+
+    final long mDuration;
+    final boolean mShowSystem;
+    final boolean mUseUss;
+    final boolean mForceRefresh;
+
+    LoadedStats mResult;
+
+    public ProcessStatsLoader(Context context, long duration, boolean showSystem, boolean useUss,
+            boolean forceRefresh) {
+        super(context);
+        mDuration = duration;
+        mShowSystem = showSystem;
+        mUseUss = useUss;
+        mForceRefresh = forceRefresh;
+    }
+
+    /**
+     * Return the stats loaded for the duration if they are still fresh, null otherwise.
+     */
+    static LoadedStats getCachedStats(long duration) {
+        synchronized (sCache) {
+            LoadedStats loaded = sCache.get(duration);
+            if (loaded != null && !loaded.isFresh()) {
+                sCache.remove(duration);
+                loaded = null;
+            }
+            return loaded;
+        }
+    }
+
+    private static void removeStaleStatsLocked() {
+        final Iterator<LoadedStats> it = sCache.values().iterator();
+        while (it.hasNext()) {
+            if (!it.next().isFresh()) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public LoadedStats loadInBackground() {
+        if (!mForceRefresh) {
+            LoadedStats cached = getCachedStats(mDuration);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        IProcessStats processStats = IProcessStats.Stub.asInterface(
+                ServiceManager.getService(ProcessStats.SERVICE_NAME));
+        LoadedStats loaded;
+        try {
+            int memState = processStats.getCurrentMemoryState();
+            ParcelFileDescriptor pfd = processStats.getStatsOverTime(mDuration);
+            ProcessStats stats = new ProcessStats(false);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            stats.read(is);
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+            }
+            loaded = new LoadedStats(mDuration, stats, memState);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+
+        // Compute the tabs before publishing the stats, nobody else sees them yet.
+        ProcessStatsUi.prepareEntries(loaded, mShowSystem, mUseUss);
+        synchronized (sCache) {
+            removeStaleStatsLocked();
+            sCache.put(mDuration, loaded);
+        }
+        return loaded;
+    }
+
+    @Override
+    public void deliverResult(LoadedStats result) {
+        mResult = result;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mResult != null) {
+            deliverResult(mResult);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mResult = null;
+    }
+}
@@ -17,12 +17,12 @@
 package com.android.settings.applications;
 
 import android.app.ActivityManager;
+import android.app.LoaderManager;
+import android.content.Loader;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
-import android.os.ServiceManager;
+import android.os.Parcel;
 import android.os.SystemClock;
 import android.os.UserManager;
 import android.preference.Preference;
@@ -37,7 +37,6 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
-import com.android.internal.app.IProcessStats;
 import com.android.internal.app.ProcessMap;
 import com.android.internal.app.ProcessStats;
 import com.android.internal.util.MemInfoReader;
@@ -45,14 +44,13 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 
 public class ProcessStatsUi extends PreferenceFragment
-        implements LinearColorBar.OnRegionTappedListener {
+        implements LinearColorBar.OnRegionTappedListener,
+        LoaderManager.LoaderCallbacks<ProcessStatsLoader.LoadedStats> {
     static final String TAG = "ProcessStatsUi";
     static final boolean DEBUG = false;
 
@@ -88,12 +86,13 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     };
 
-    private static ProcessStats sStatsXfer;
+    private static final int LOADER_STATS = 0;
 
-    IProcessStats mProcessStats;
     UserManager mUm;
     ProcessStats mStats;
+    ProcessStatsLoader.LoadedStats mLoadedStats;
     int mMemState;
+    private boolean mForceRefresh;
 
     private long mDuration;
     private long mLastDuration;
@@ -143,13 +142,7 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.process_stats_summary);
-        mProcessStats = IProcessStats.Stub.asInterface(
-                ServiceManager.getService(ProcessStats.SERVICE_NAME));
         mUm = (UserManager)getActivity().getSystemService(Context.USER_SERVICE);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         mMemStatusPref = mAppListGroup.findPreference(KEY_MEM_STATUS);
@@ -184,14 +177,6 @@ public class ProcessStatsUi extends PreferenceFragment
         outState.putInt("mem_region", mMemRegion);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        }
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof LinearColorPreference) {
@@ -310,6 +295,7 @@ public class ProcessStatsUi extends PreferenceFragment
         switch (id) {
             case MENU_STATS_REFRESH:
                 mStats = null;
+                mForceRefresh = true;
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -374,7 +360,7 @@ public class ProcessStatsUi extends PreferenceFragment
             ProcessStats.ADJ_MEM_FACTOR_MODERATE
     };
 
-    private String makeDuration(long time) {
+    private static String makeDuration(long time) {
         StringBuilder sb = new StringBuilder(32);
         TimeUtils.formatDuration(time, sb);
         return sb.toString();
@@ -384,20 +370,23 @@ public class ProcessStatsUi extends PreferenceFragment
         updateMenus();
 
         if (mStats == null || mLastDuration != mDuration) {
-            load();
+            ProcessStatsLoader.LoadedStats cached = mForceRefresh
+                    ? null : ProcessStatsLoader.getCachedStats(mDuration);
+            if (cached == null) {
+                // Keep showing the current stats until the loader delivers.
+                getLoaderManager().restartLoader(LOADER_STATS, null, this);
+                return;
+            }
+            setLoadedStats(cached);
         }
 
-        int[] stats;
+        int[] stats = getProcStates(mStatsType, mShowSystem);
         int statsLabel;
         if (mStatsType == MENU_TYPE_FOREGROUND) {
-            stats = FOREGROUND_PROC_STATES;
             statsLabel = R.string.process_stats_type_foreground;
         } else if (mStatsType == MENU_TYPE_CACHED) {
-            stats = CACHED_PROC_STATES;
             statsLabel = R.string.process_stats_type_cached;
         } else {
-            stats = mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
-                    : ProcessStats.BACKGROUND_PROC_STATES;
             statsLabel = R.string.process_stats_type_background;
         }
 
@@ -605,116 +594,23 @@ public class ProcessStatsUi extends PreferenceFragment
 
         mAppListGroup.addPreference(colors);
 
-        ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
-                ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
-
-        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
-
-        /*
-        ArrayList<ProcessStats.ProcessState> rawProcs = mStats.collectProcessesLocked(
-                ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
-                ProcessStats.BACKGROUND_PROC_STATES, now, null);
-        for (int i=0, N=(rawProcs != null ? rawProcs.size() : 0); i<N; i++) {
-            procs.add(new ProcStatsEntry(rawProcs.get(i), totals));
-        }
-        */
-
-        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
-
-        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
-            final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
-            for (int iu=0; iu<pkgUids.size(); iu++) {
-                final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
-                for (int iv=0; iv<vpkgs.size(); iv++) {
-                    final ProcessStats.PackageState st = vpkgs.valueAt(iv);
-                    for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
-                        final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                        final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                                pkgProc.mUid);
-                        if (proc == null) {
-                            Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                    + "/" + st.mUid + " proc name " + pkgProc.mName);
-                            continue;
-                        }
-                        ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                        if (ent == null) {
-                            ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                    mStatsType == MENU_TYPE_BACKGROUND);
-                            if (ent.mDuration > 0) {
-                                if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                        + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
-                                        + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
-                                        + " pss=" + ent.mAvgPss);
-                                entriesMap.put(proc.mName, proc.mUid, ent);
-                                entries.add(ent);
-                            }
-                        }  else {
-                            ent.addPackage(st.mPackageName);
-                        }
-                    }
-                }
-            }
-        }
-
-        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
-
-        // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
-                SparseArray<SparseArray<ProcessStats.PackageState>> uids
-                        = mStats.mPackages.getMap().valueAt(ip);
-                for (int iu=0; iu<uids.size(); iu++) {
-                    SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
-                    for (int iv=0; iv<vpkgs.size(); iv++) {
-                        ProcessStats.PackageState ps = vpkgs.valueAt(iv);
-                        for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
-                            ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
-                            if (ss.mProcessName != null) {
-                                ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
-                                if (ent != null) {
-                                    if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
-                                            + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
-                                            + ss.mProcessName);
-                                    ent.addService(ss);
-                                } else {
-                                    Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
-                                            + " for service " + ss.mName);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        /*
-        SparseArray<ArrayMap<String, ProcStatsEntry>> processes
-                = new SparseArray<ArrayMap<String, ProcStatsEntry>>();
-        for (int ip=0, N=mStats.mProcesses.getMap().size(); ip<N; ip++) {
-            SparseArray<ProcessStats.ProcessState> uids = mStats.mProcesses.getMap().valueAt(ip);
-            for (int iu=0; iu<uids.size(); iu++) {
-                ProcessStats.ProcessState st = uids.valueAt(iu);
-                ProcStatsEntry ent = new ProcStatsEntry(st, totals, mUseUss,
-                        mStatsType == MENU_TYPE_BACKGROUND);
-                if (ent.mDuration > 0) {
-                    if (DEBUG) Log.d(TAG, "Adding proc " + st.mName + "/" + st.mUid + ": time="
-                            + makeDuration(ent.mDuration) + " ("
-                            + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)");
-                    procs.add(ent);
-                    ArrayMap<String, ProcStatsEntry> uidProcs = processes.get(ent.mUid);
-                    if (uidProcs == null) {
-                        uidProcs = new ArrayMap<String, ProcStatsEntry>();
-                        processes.put(ent.mUid, uidProcs);
-                    }
-                    uidProcs.put(ent.mName, ent);
-                }
+        ProcessStatsLoader.Entries cachedEntries = mLoadedStats != null
+                ? mLoadedStats.getEntries(mStatsType, mShowSystem, mUseUss, mMemRegion) : null;
+        final ProcessStats.ProcessDataCollection totals;
+        final ArrayList<ProcStatsEntry> entries;
+        if (cachedEntries != null) {
+            totals = cachedEntries.totals;
+            entries = cachedEntries.entries;
+        } else {
+            totals = new ProcessStats.ProcessDataCollection(
+                    ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
+            entries = collectEntries(mStats, totals, mUseUss,
+                    mStatsType == MENU_TYPE_BACKGROUND);
+            if (mLoadedStats != null) {
+                mLoadedStats.putEntries(mStatsType, mShowSystem, mUseUss, mMemRegion,
+                        new ProcessStatsLoader.Entries(totals, entries));
             }
         }
-        */
-
-        Collections.sort(entries, sEntryCompare);
 
         long maxWeight = 1;
         for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
@@ -751,7 +647,8 @@ public class ProcessStatsUi extends PreferenceFragment
             end--;
         }
         for (int i=0; i<=end; i++) {
-            ProcStatsEntry proc = entries.get(i);
+            // The entries may be shared with the loader cache, work on a copy of this one.
+            ProcStatsEntry proc = copyEntry(entries.get(i));
             final double percentOfWeight = (((double)proc.mWeight) / mMaxWeight) * 100;
             final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
             ProcessStatsPreference pref = new ProcessStatsPreference(getActivity());
@@ -783,23 +680,153 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     }
 
-    private void load() {
+    private static ProcStatsEntry copyEntry(ProcStatsEntry entry) {
+        final Parcel parcel = Parcel.obtain();
         try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
+            entry.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return new ProcStatsEntry(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Build the entries of the processes that ran in the given states, sorted by weight.
+     * Only depends on its arguments, so it can run on a background thread.
+     */
+    static ArrayList<ProcStatsEntry> collectEntries(ProcessStats stats,
+            ProcessStats.ProcessDataCollection totals, boolean useUss, boolean background) {
+        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+
+        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
+
+        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
+        for (int ipkg=0, N=stats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+            final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids
+                    = stats.mPackages.getMap().valueAt(ipkg);
+            for (int iu=0; iu<pkgUids.size(); iu++) {
+                final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
+                for (int iv=0; iv<vpkgs.size(); iv++) {
+                    final ProcessStats.PackageState st = vpkgs.valueAt(iv);
+                    for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
+                        final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                        final ProcessStats.ProcessState proc = stats.mProcesses.get(pkgProc.mName,
+                                pkgProc.mUid);
+                        if (proc == null) {
+                            Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                    + "/" + st.mUid + " proc name " + pkgProc.mName);
+                            continue;
+                        }
+                        ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
+                        if (ent == null) {
+                            ent = new ProcStatsEntry(proc, st.mPackageName, totals, useUss,
+                                    background);
+                            if (ent.mDuration > 0) {
+                                if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
+                                        + proc.mUid + ": time=" + makeDuration(ent.mDuration)
+                                        + " pss=" + ent.mAvgPss);
+                                entriesMap.put(proc.mName, proc.mUid, ent);
+                                entries.add(ent);
+                            }
+                        }  else {
+                            ent.addPackage(st.mPackageName);
+                        }
+                    }
+                }
             }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
+        }
+
+        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
+
+        // Add in service info.
+        if (background) {
+            for (int ip=0, N=stats.mPackages.getMap().size(); ip<N; ip++) {
+                SparseArray<SparseArray<ProcessStats.PackageState>> uids
+                        = stats.mPackages.getMap().valueAt(ip);
+                for (int iu=0; iu<uids.size(); iu++) {
+                    SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
+                    for (int iv=0; iv<vpkgs.size(); iv++) {
+                        ProcessStats.PackageState ps = vpkgs.valueAt(iv);
+                        for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
+                            ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
+                            if (ss.mProcessName != null) {
+                                ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
+                                if (ent != null) {
+                                    if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
+                                            + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
+                                            + ss.mProcessName);
+                                    ent.addService(ss);
+                                } else {
+                                    Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
+                                            + " for service " + ss.mName);
+                                }
+                            }
+                        }
+                    }
+                }
             }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
         }
+
+        Collections.sort(entries, sEntryCompare);
+        return entries;
+    }
+
+    private void setLoadedStats(ProcessStatsLoader.LoadedStats loaded) {
+        mLoadedStats = loaded;
+        mStats = loaded.stats;
+        mMemState = loaded.memState;
+        mLastDuration = loaded.duration;
+    }
+
+    static int[] getProcStates(int statsType, boolean showSystem) {
+        if (statsType == MENU_TYPE_FOREGROUND) {
+            return FOREGROUND_PROC_STATES;
+        } else if (statsType == MENU_TYPE_CACHED) {
+            return CACHED_PROC_STATES;
+        }
+        return showSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
+                : ProcessStats.BACKGROUND_PROC_STATES;
+    }
+
+    /**
+     * Compute the entries of the three tabs with the default memory region.  Called by
+     * {@link ProcessStatsLoader} on its background thread.
+     */
+    static void prepareEntries(ProcessStatsLoader.LoadedStats loaded, boolean showSystem,
+            boolean useUss) {
+        final int[] types = new int[] {
+                MENU_TYPE_BACKGROUND, MENU_TYPE_FOREGROUND, MENU_TYPE_CACHED };
+        for (int type : types) {
+            ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
+                    ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
+                    getProcStates(type, showSystem));
+            ArrayList<ProcStatsEntry> entries = collectEntries(loaded.stats, totals, useUss,
+                    type == MENU_TYPE_BACKGROUND);
+            loaded.putEntries(type, showSystem, useUss, LinearColorBar.REGION_GREEN,
+                    new ProcessStatsLoader.Entries(totals, entries));
+        }
+    }
+
+    @Override
+    public Loader<ProcessStatsLoader.LoadedStats> onCreateLoader(int id, Bundle args) {
+        return new ProcessStatsLoader(getActivity(), mDuration, mShowSystem, mUseUss,
+                mForceRefresh);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<ProcessStatsLoader.LoadedStats> loader,
+            ProcessStatsLoader.LoadedStats data) {
+        mForceRefresh = false;
+        if (data == null || data.duration != mDuration) {
+            // Failed, or another duration was selected meanwhile.
+            return;
+        }
+        setLoadedStats(data);
+        refreshStats();
+    }
+
+    @Override
+    public void onLoaderReset(Loader<ProcessStatsLoader.LoadedStats> loader) {
     }
 }
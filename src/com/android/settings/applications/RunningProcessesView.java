@@ -18,7 +18,6 @@ package com.android.settings.applications;
 
 import android.content.res.Resources;
 import android.text.BidiFormatter;
-import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 
 import android.app.ActivityManager;
@@ -29,6 +28,7 @@ import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.AttributeSet;
@@ -68,6 +68,10 @@ public class RunningProcessesView extends FrameLayout
     Runnable mDataAvail;
 
     StringBuilder mBuilder = new StringBuilder(128);
+
+    // Changes taken from the state on each refresh, reused to not allocate in the
+    // steady state.
+    final RunningState.ItemChanges mChanges = new RunningState.ItemChanges();
     
     RunningState.BaseItem mCurSelected;
     
@@ -90,8 +94,6 @@ public class RunningProcessesView extends FrameLayout
 
     Dialog mCurDialog;
 
-    MemInfoReader mMemInfoReader = new MemInfoReader();
-
     public static class ActiveItem {
         View mRootView;
         RunningState.BaseItem mItem;
@@ -99,6 +101,8 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
+        // What the icon shown was loaded from, to reload it when that changes.
+        Object mIconSource;
 
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
@@ -172,18 +176,6 @@ public class RunningProcessesView extends FrameLayout
         public ActiveItem bind(RunningState state, RunningState.BaseItem item,
                 StringBuilder builder) {
             synchronized (state.mLock) {
-                PackageManager pm = rootView.getContext().getPackageManager();
-                if (item.mPackageInfo == null && item instanceof RunningState.MergedItem) {
-                    // Items for background processes don't normally load
-                    // their labels for performance reasons.  Do it now.
-                    RunningState.MergedItem mergedItem = (RunningState.MergedItem)item;
-                    if (mergedItem.mProcess != null) {
-                        ((RunningState.MergedItem)item).mProcess.ensureLabel(pm);
-                        item.mPackageInfo = ((RunningState.MergedItem)item).mProcess.mPackageInfo;
-                        item.mDisplayLabel = ((RunningState.MergedItem)item).mProcess.mDisplayLabel;
-                    }
-                }
-                name.setText(item.mDisplayLabel);
                 ActiveItem ai = new ActiveItem();
                 ai.mRootView = rootView;
                 ai.mItem = item;
@@ -195,12 +187,47 @@ public class RunningProcessesView extends FrameLayout
                     description.setText(item.mDescription);
                 }
                 item.mCurSizeStr = null;
-                icon.setImageDrawable(item.loadIcon(rootView.getContext(), state));
+                bindLabelAndIcon(state, ai, true);
                 icon.setVisibility(View.VISIBLE);
                 ai.updateTime(rootView.getContext(), builder);
                 return ai;
             }
         }
+
+        /**
+         * Show the label and icon of the item, only setting those that changed since they
+         * were last shown unless force is set.  Must be called with the state lock held.
+         */
+        void bindLabelAndIcon(RunningState state, ActiveItem ai, boolean force) {
+            final RunningState.BaseItem item = ai.mItem;
+            if (item.mPackageInfo == null && item instanceof RunningState.MergedItem) {
+                // Items for background processes don't normally load
+                // their labels for performance reasons.  Do it now.
+                RunningState.MergedItem mergedItem = (RunningState.MergedItem)item;
+                if (mergedItem.mProcess != null) {
+                    PackageManager pm = rootView.getContext().getPackageManager();
+                    mergedItem.mProcess.ensureLabel(pm);
+                    item.mPackageInfo = mergedItem.mProcess.mPackageInfo;
+                    item.mDisplayLabel = mergedItem.mProcess.mDisplayLabel;
+                }
+            }
+            if (force || !TextUtils.equals(item.mDisplayLabel, name.getText())) {
+                name.setText(item.mDisplayLabel);
+            }
+            final Object iconSource = getIconSource(item);
+            if (force || iconSource != ai.mIconSource) {
+                ai.mIconSource = iconSource;
+                icon.setImageDrawable(item.loadIcon(rootView.getContext(), state));
+            }
+        }
+
+        private static Object getIconSource(RunningState.BaseItem item) {
+            if (item instanceof RunningState.MergedItem
+                    && ((RunningState.MergedItem)item).mUser != null) {
+                return ((RunningState.MergedItem)item).mUser.mIcon;
+            }
+            return item.mPackageInfo;
+        }
     }
     
     static class TimeTicker extends TextView {
@@ -214,22 +241,27 @@ public class RunningProcessesView extends FrameLayout
         final LayoutInflater mInflater;
         boolean mShowBackground;
         ArrayList<RunningState.MergedItem> mOrigItems;
-        final ArrayList<RunningState.MergedItem> mItems
+        ArrayList<RunningState.MergedItem> mItems
+                = new ArrayList<RunningState.MergedItem>();
+        // Reused to build the next mItems, swapped with it when the items changed.
+        ArrayList<RunningState.MergedItem> mNewItems
                 = new ArrayList<RunningState.MergedItem>();
         
         ServiceListAdapter(RunningState state) {
             mState = state;
             mInflater = (LayoutInflater)getContext().getSystemService(
                     Context.LAYOUT_INFLATER_SERVICE);
-            refreshItems();
+            refreshItems(false);
         }
 
         void setShowBackground(boolean showBackground) {
             if (mShowBackground != showBackground) {
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
-                refreshItems();
-                refreshUi(true);
+                if (refreshItems(false)) {
+                    notifyDataSetChanged();
+                }
+                refreshUi(false);
             }
         }
 
@@ -237,22 +269,49 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
+        /**
+         * Take the items of the state again.  Returns true if the items shown changed,
+         * false if the state only built a new list holding the same items in the same
+         * order.  The list is sorted again when resort is set, even if it is the same.
+         */
+        boolean refreshItems(boolean resort) {
             ArrayList<RunningState.MergedItem> newItems =
                 mShowBackground ? mState.getCurrentBackgroundItems()
                         : mState.getCurrentMergedItems();
-            if (mOrigItems != newItems) {
-                mOrigItems = newItems;
-                if (newItems == null) {
-                    mItems.clear();
-                } else {
-                    mItems.clear();
-                    mItems.addAll(newItems);
-                    if (mShowBackground) {
-                        Collections.sort(mItems, mState.mBackgroundComparator);
-                    }
+            if (mOrigItems == newItems && !resort) {
+                return false;
+            }
+            mOrigItems = newItems;
+            mNewItems.clear();
+            if (newItems != null) {
+                mNewItems.addAll(newItems);
+                if (mShowBackground) {
+                    Collections.sort(mNewItems, mState.mBackgroundComparator);
                 }
             }
+            if (mNewItems.equals(mItems)) {
+                return false;
+            }
+            ArrayList<RunningState.MergedItem> items = mItems;
+            mItems = mNewItems;
+            mNewItems = items;
+            return true;
+        }
+
+        /**
+         * Apply the changes of the state: the items are only taken again when some were
+         * added or removed, or when background items, sorted by label, changed; otherwise
+         * only the rows shown for the items changed are bound again.
+         */
+        void applyChanges(RunningState.ItemChanges changes) {
+            boolean takeItems = changes.mAdded.size() > 0 || changes.mRemoved.size() > 0;
+            if (takeItems || (mShowBackground && changes.mChanged.size() > 0)) {
+                if (refreshItems(!takeItems)) {
+                    notifyDataSetChanged();
+                    return;
+                }
+            }
+            refreshActiveItems(changes.mChanged);
         }
         
         public boolean hasStableIds() {
@@ -319,9 +378,11 @@ public class RunningProcessesView extends FrameLayout
 
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
-            ServiceListAdapter adapter = mAdapter;
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            mState.takeItemChanges(mChanges);
+            if (!mChanges.isEmpty()) {
+                mAdapter.applyChanges(mChanges);
+                mChanges.clear();
+            }
         }
         
         if (mDataAvail != null) {
@@ -329,13 +390,10 @@ public class RunningProcessesView extends FrameLayout
             mDataAvail = null;
         }
 
-        mMemInfoReader.readMemInfo();
-
         /*
         // This is the amount of available memory until we start killing
         // background services.
-        long availMem = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize()
-                - SECONDARY_SERVER_MEM;
+        long availMem = mState.mFreeRam - SECONDARY_SERVER_MEM;
         if (availMem < 0) {
             availMem = 0;
         }
@@ -357,22 +415,22 @@ public class RunningProcessesView extends FrameLayout
                 }
             }
 
-            final long totalRam = mMemInfoReader.getTotalSize();
+            // Read by the background thread of the state, along with the processes.
+            final long totalRam = mState.mTotalRam;
             final long medRam;
             final long lowRam;
             if (mCurShowCached) {
-                lowRam = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize();
+                lowRam = mState.mFreeRam;
                 medRam = mState.mBackgroundProcessMemory;
             } else {
-                lowRam = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize()
-                        + mState.mBackgroundProcessMemory;
+                lowRam = mState.mFreeRam + mState.mBackgroundProcessMemory;
                 medRam = mState.mServiceProcessMemory;
 
             }
             final long highRam = totalRam - medRam - lowRam;
 
-            if (mCurTotalRam != totalRam || mCurHighRam != highRam || mCurMedRam != medRam
-                    || mCurLowRam != lowRam) {
+            if (totalRam > 0 && (mCurTotalRam != totalRam || mCurHighRam != highRam
+                    || mCurMedRam != medRam || mCurLowRam != lowRam)) {
                 mCurTotalRam = totalRam;
                 mCurHighRam = highRam;
                 mCurMedRam = medRam;
@@ -477,6 +535,9 @@ public class RunningProcessesView extends FrameLayout
         if (mState.hasData()) {
             // If the state already has its data, then let's populate our
             // list right now to avoid flicker.
+            if (mAdapter.refreshItems(false)) {
+                mAdapter.notifyDataSetChanged();
+            }
             refreshUi(true);
             return true;
         }
@@ -484,6 +545,31 @@ public class RunningProcessesView extends FrameLayout
         return false;
     }
 
+    /**
+     * Refresh what may have changed in the rows shown for the given items, rather than
+     * binding all of them again.
+     */
+    void refreshActiveItems(ArrayList<RunningState.MergedItem> changed) {
+        if (changed.size() == 0) {
+            return;
+        }
+        synchronized (mState.mLock) {
+            for (ActiveItem ai : mActiveItems.values()) {
+                if (!changed.contains(ai.mItem)) {
+                    continue;
+                }
+                ai.mFirstRunTime = ai.mItem.mActiveSince;
+                // Background items are merged again on each update, so the process they
+                // show may differ from the one first bound.
+                ai.mHolder.bindLabelAndIcon(mState, ai, false);
+                if (!ai.mItem.mBackground && !TextUtils.equals(ai.mItem.mDescription,
+                        ai.mHolder.description.getText())) {
+                    ai.mHolder.description.setText(ai.mItem.mDescription);
+                }
+            }
+        }
+    }
+
     void updateTimes() {
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
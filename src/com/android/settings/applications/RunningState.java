@@ -43,6 +43,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
@@ -75,6 +76,9 @@ public class RunningState {
 
     static final int MAX_SERVICES = 100;
 
+    // Background processes only have their memory sampled every this many updates.
+    static final int BACKGROUND_PSS_INTERVAL = 3;
+
     final Context mApplicationContext;
     final ActivityManager mAm;
     final PackageManager mPm;
@@ -128,7 +132,7 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
@@ -137,9 +141,20 @@ public class RunningState {
         }
     }
 
+    final MemInfoReader mMemInfoReader = new MemInfoReader();
+
+    // Merged items whose update() reported a change during the current update, in the
+    // merged and background lists.  Only touched by the background thread.
+    final ArrayList<MergedItem> mUpdatedItems = new ArrayList<MergedItem>();
+    final ArrayList<MergedItem> mUpdatedBackgroundItems = new ArrayList<MergedItem>();
+
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // Recycled entries of mTmpAppProcesses, so that the refresh running every
+    // couple of seconds does not allocate them again.
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+
     int mSequence = 0;
 
     final Comparator<RunningState.MergedItem> mBackgroundComparator
@@ -213,6 +228,8 @@ public class RunningState {
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mUserBackgroundItems = new ArrayList<MergedItem>();
+    // Changes to the list watched, merged or background items, not taken by the view yet.
+    final ItemChanges mItemChanges = new ItemChanges();
     
     int mNumBackgroundProcesses;
     long mBackgroundProcessMemory;
@@ -221,6 +238,10 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    // From /proc/meminfo, read on the background thread.
+    long mTotalRam;
+    long mFreeRam;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -296,6 +317,98 @@ public class RunningState {
         public void onRefreshUi(int what);
     }
 
+    /**
+     * The items added to, removed from and changed in a list of merged items, so that
+     * the view only takes the list again when it has to, and only binds again the rows
+     * of the items that changed.
+     */
+    static class ItemChanges {
+        final ArrayList<MergedItem> mAdded = new ArrayList<MergedItem>();
+        final ArrayList<MergedItem> mRemoved = new ArrayList<MergedItem>();
+        final ArrayList<MergedItem> mChanged = new ArrayList<MergedItem>();
+
+        boolean isEmpty() {
+            return mAdded.size() == 0 && mRemoved.size() == 0 && mChanged.size() == 0;
+        }
+
+        void clear() {
+            mAdded.clear();
+            mRemoved.clear();
+            mChanged.clear();
+        }
+
+        void added(MergedItem item) {
+            if (mRemoved.remove(item)) {
+                changed(item);
+            } else if (!mAdded.contains(item)) {
+                mAdded.add(item);
+            }
+        }
+
+        void removed(MergedItem item) {
+            mChanged.remove(item);
+            if (!mAdded.remove(item) && !mRemoved.contains(item)) {
+                mRemoved.add(item);
+            }
+        }
+
+        void changed(MergedItem item) {
+            if (!mAdded.contains(item) && !mChanged.contains(item)) {
+                mChanged.add(item);
+            }
+        }
+
+        /**
+         * Add the changes from the old list to the new one, where the given items were
+         * updated.  Returns true if there was any.
+         */
+        boolean record(ArrayList<MergedItem> oldItems, ArrayList<MergedItem> newItems,
+                ArrayList<MergedItem> updatedItems) {
+            boolean recorded = false;
+            if (oldItems != newItems) {
+                for (int i=0; i<newItems.size(); i++) {
+                    MergedItem item = newItems.get(i);
+                    if (!oldItems.contains(item)) {
+                        added(item);
+                        recorded = true;
+                    }
+                }
+                for (int i=0; i<oldItems.size(); i++) {
+                    MergedItem item = oldItems.get(i);
+                    if (!newItems.contains(item)) {
+                        removed(item);
+                        recorded = true;
+                    }
+                }
+            }
+            for (int i=0; i<updatedItems.size(); i++) {
+                MergedItem item = updatedItems.get(i);
+                if (newItems.contains(item)) {
+                    changed(item);
+                    recorded = true;
+                }
+            }
+            return recorded;
+        }
+
+        /**
+         * Move all the changes into the given ones, which are cleared first.
+         */
+        void moveTo(ItemChanges changes) {
+            changes.clear();
+            for (int i=0; i<mAdded.size(); i++) {
+                changes.mAdded.add(mAdded.get(i));
+            }
+            for (int i=0; i<mRemoved.size(); i++) {
+                changes.mRemoved.add(mRemoved.get(i));
+            }
+            for (int i=0; i<mChanged.size(); i++) {
+                changes.mChanged.add(mChanged.get(i));
+            }
+            clear();
+        }
+    }
+
     static class UserState {
         UserInfo mInfo;
         String mLabel;
@@ -316,6 +429,8 @@ public class RunningState {
         long mActiveSince;
         long mSize;
         String mSizeStr;
+        // The size mSizeStr was formatted for.
+        long mSizeStrSize = -1;
         String mCurSizeStr;
         boolean mNeedDivider;
         boolean mBackground;
@@ -325,6 +440,13 @@ public class RunningState {
             mUserId = userId;
         }
 
+        void updateSizeStr(Context context) {
+            if (mSizeStr == null || mSizeStrSize != mSize) {
+                mSizeStrSize = mSize;
+                mSizeStr = Formatter.formatShortFileSize(context, mSize);
+            }
+        }
+
         public Drawable loadIcon(Context context, RunningState state) {
             if (mPackageInfo != null) {
                 return mPackageInfo.loadIcon(state.mPm);
@@ -360,6 +482,9 @@ public class RunningState {
         
         int mRunningSeq;
         ActivityManager.RunningAppProcessInfo mRunningProcessInfo;
+
+        // Sequence of the update that last sampled the memory of the process.
+        int mPssSeq;
         
         MergedItem mMergedItem;
 
@@ -516,15 +641,10 @@ public class RunningState {
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
             if (mCurSeq == curSeq) {
-                String sizeStr = Formatter.formatShortFileSize(
-                        context, mSize);
-                if (!sizeStr.equals(mSizeStr)){
-                    mSizeStr = sizeStr;
-                    // We update this on the second tick where we update just
-                    // the text in the current items, so no need to say we
-                    // changed here.
-                    return false;
-                }
+                // We update this on the second tick where we update just
+                // the text in the current items, so no need to say we
+                // changed here.
+                updateSizeStr(context);
             }
             return false;
         }
@@ -595,7 +715,14 @@ public class RunningState {
             }
         }
 
+        /**
+         * Returns true if the label, icon, description or start time shown changed.
+         */
         boolean update(Context context, boolean background) {
+            final CharSequence oldDisplayLabel = mDisplayLabel;
+            final PackageItemInfo oldPackageInfo = mPackageInfo;
+            final String oldDescription = mDescription;
+            final long oldActiveSince = mActiveSince;
             mBackground = background;
 
             if (mUser != null) {
@@ -641,7 +768,8 @@ public class RunningState {
                 }
             }
 
-            return false;
+            return mDisplayLabel != oldDisplayLabel || mPackageInfo != oldPackageInfo
+                    || mDescription != oldDescription || mActiveSince != oldActiveSince;
         }
         
         boolean updateSize(Context context) {
@@ -659,15 +787,10 @@ public class RunningState {
                 }
             }
             
-            String sizeStr = Formatter.formatShortFileSize(
-                    context, mSize);
-            if (!sizeStr.equals(mSizeStr)){
-                mSizeStr = sizeStr;
-                // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
-            }
+            // We update this on the second tick where we update just
+            // the text in the current items, so no need to say we
+            // changed here.
+            updateSizeStr(context);
             return false;
         }
 
@@ -827,6 +950,41 @@ public class RunningState {
         mUsers.clear();
     }
 
+    private boolean needsPssSample(ProcessItem proc) {
+        if (proc.mPssSeq == 0 || proc.mCurSeq == mSequence || proc.mRunningProcessInfo == null
+                || proc.mRunningProcessInfo.importance
+                        < ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
+            return true;
+        }
+        return (mSequence - proc.mPssSeq) >= BACKGROUND_PSS_INTERVAL;
+    }
+
+    private AppProcessInfo obtainAppProcessInfo(ActivityManager.RunningAppProcessInfo pi) {
+        final int N = mAppProcessInfoPool.size();
+        if (N == 0) {
+            return new AppProcessInfo(pi);
+        }
+        AppProcessInfo ainfo = mAppProcessInfoPool.remove(N-1);
+        ainfo.info = pi;
+        ainfo.hasServices = false;
+        ainfo.hasForegroundServices = false;
+        return ainfo;
+    }
+
+    /**
+     * Return the merged item showing the process on its own in the background list,
+     * reusing the one of the previous update if any.
+     */
+    private MergedItem obtainBackgroundItem(ProcessItem proc) {
+        MergedItem mergedItem = proc.mMergedItem;
+        if (mergedItem == null || mergedItem.mProcess != proc
+                || mergedItem.mServices.size() > 0) {
+            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
+            mergedItem.mProcess = proc;
+        }
+        return mergedItem;
+    }
+
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
             SparseArray<MergedItem> userItems, MergedItem newItem) {
         MergedItem userItem = userItems.get(newItem.mUserId);
@@ -860,12 +1018,14 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    boolean update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
 
         mSequence++;
         
         boolean changed = false;
+        mUpdatedItems.clear();
+        mUpdatedBackgroundItems.clear();
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -899,10 +1059,15 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<mTmpAppProcesses.size(); i++) {
+            AppProcessInfo ainfo = mTmpAppProcesses.valueAt(i);
+            ainfo.info = null;
+            mAppProcessInfoPool.add(ainfo);
+        }
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            mTmpAppProcesses.put(pi.pid, obtainAppProcessInfo(pi));
         }
 
         // Initial iteration through running services to collect per-process
@@ -1199,7 +1364,9 @@ public class RunningState {
                     }
                 }
                 
-                mergedItem.update(context, false);
+                if (mergedItem.update(context, false)) {
+                    mUpdatedItems.add(mergedItem);
+                }
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1217,7 +1384,9 @@ public class RunningState {
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                     }
-                    proc.mMergedItem.update(context, false);
+                    if (proc.mMergedItem.update(context, false)) {
+                        mUpdatedItems.add(proc.mMergedItem);
+                    }
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1234,11 +1403,16 @@ public class RunningState {
             for (int i=0; i<NU; i++) {
                 MergedItem user = mOtherUserMergedItems.valueAt(i);
                 if (user.mCurSeq == mSequence) {
-                    user.update(context, false);
+                    if (user.update(context, false)) {
+                        mUpdatedItems.add(user);
+                    }
                 }
             }
 
             synchronized (mLock) {
+                if (!mWatchingBackgroundItems) {
+                    mItemChanges.record(mMergedItems, newMergedItems, mUpdatedItems);
+                }
                 mItems = newItems;
                 mMergedItems = newMergedItems;
             }
@@ -1281,13 +1455,38 @@ public class RunningState {
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
         try {
+            // Sample all processes in one call, except for background processes that
+            // were sampled recently: they are many and their memory changes slowly.
             final int numProc = mAllProcessItems.size();
+            int numSampled = 0;
+            for (int i=0; i<numProc; i++) {
+                if (needsPssSample(mAllProcessItems.get(i))) {
+                    numSampled++;
+                }
+            }
+            int[] sampledPids = new int[numSampled];
+            int sampleIndex = 0;
+            for (int i=0; i<numProc; i++) {
+                ProcessItem proc = mAllProcessItems.get(i);
+                if (needsPssSample(proc)) {
+                    sampledPids[sampleIndex++] = proc.mPid;
+                }
+            }
+            long[] sampledPss = ActivityManagerNative.getDefault()
+                    .getProcessPss(sampledPids);
             int[] pids = new int[numProc];
+            long[] pss = new long[numProc];
+            sampleIndex = 0;
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                pids[i] = proc.mPid;
+                if (needsPssSample(proc)) {
+                    pss[i] = sampledPss[sampleIndex++];
+                    proc.mPssSeq = mSequence;
+                } else {
+                    pss[i] = proc.mSize / 1024;
+                }
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
@@ -1299,8 +1498,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = obtainBackgroundItem(proc);
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
@@ -1312,15 +1510,16 @@ public class RunningState {
                                 diffUsers |= mergedItem.mUserId != mMyUserId;
                                 newBackgroundItems.add(mergedItem);
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = obtainBackgroundItem(proc);
                             diffUsers |= mergedItem.mUserId != mMyUserId;
                             newBackgroundItems.add(mergedItem);
                         } else {
                             mergedItem = mBackgroundItems.get(bgIndex);
                         }
                     }
-                    mergedItem.update(context, true);
+                    if (mergedItem.update(context, true)) {
+                        mUpdatedBackgroundItems.add(mergedItem);
+                    }
                     mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
@@ -1369,7 +1568,9 @@ public class RunningState {
                 for (int i=0; i<NU; i++) {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
-                        user.update(context, true);
+                        if (user.update(context, true)) {
+                            mUpdatedBackgroundItems.add(user);
+                        }
                         user.updateSize(context);
                     }
                 }
@@ -1379,14 +1580,24 @@ public class RunningState {
         for (int i=0; i<mMergedItems.size(); i++) {
             mMergedItems.get(i).updateSize(context);
         }
+
+        mMemInfoReader.readMemInfo();
         
         synchronized (mLock) {
+            mTotalRam = mMemInfoReader.getTotalSize();
+            mFreeRam = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize();
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
             mNumServiceProcesses = numServiceProcesses;
             mBackgroundProcessMemory = backgroundProcessMemory;
             mForegroundProcessMemory = foregroundProcessMemory;
             mServiceProcessMemory = serviceProcessMemory;
+            if (mWatchingBackgroundItems && mItemChanges.record(mUserBackgroundItems,
+                    newUserBackgroundItems != null
+                            ? newUserBackgroundItems : mUserBackgroundItems,
+                    mUpdatedBackgroundItems)) {
+                changed = true;
+            }
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
@@ -1411,10 +1622,23 @@ public class RunningState {
     
     void setWatchingBackgroundItems(boolean watching) {
         synchronized (mLock) {
+            if (mWatchingBackgroundItems != watching) {
+                // The view takes the whole list it now watches.
+                mItemChanges.clear();
+            }
             mWatchingBackgroundItems = watching;
         }
     }
 
+    /**
+     * Move the changes to the list watched since the last call into the given changes.
+     */
+    void takeItemChanges(ItemChanges changes) {
+        synchronized (mLock) {
+            mItemChanges.moveTo(changes);
+        }
+    }
+
     ArrayList<MergedItem> getCurrentMergedItems() {
         synchronized (mLock) {
             return mMergedItems;
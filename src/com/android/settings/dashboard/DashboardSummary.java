@@ -37,7 +37,8 @@ import com.android.settings.SettingsActivity;
 
 import java.util.List;
 
-public class DashboardSummary extends Fragment {
+public class DashboardSummary extends Fragment
+        implements SettingsActivity.DashboardCategoriesListener {
     private static final String LOG_TAG = "DashboardSummary";
 
     private LayoutInflater mLayoutInflater;
@@ -50,7 +51,7 @@ public class DashboardSummary extends Fragment {
             switch (msg.what) {
                 case MSG_REBUILD_UI: {
                     final Context context = getActivity();
-                    rebuildUI(context);
+                    rebuildUI(context, msg.arg1 != 0);
                 } break;
             }
         }
@@ -59,7 +60,7 @@ public class DashboardSummary extends Fragment {
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            rebuildUI(context);
+            rebuildUI(context, true);
         }
     }
     private HomePackageReceiver mHomePackageReceiver = new HomePackageReceiver();
@@ -68,6 +69,7 @@ public class DashboardSummary extends Fragment {
     public void onResume() {
         super.onResume();
 
+        ((SettingsActivity) getActivity()).addDashboardCategoriesListener(this);
         sendRebuildUI();
 
         final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
@@ -82,9 +84,15 @@ public class DashboardSummary extends Fragment {
     public void onPause() {
         super.onPause();
 
+        ((SettingsActivity) getActivity()).removeDashboardCategoriesListener(this);
         getActivity().unregisterReceiver(mHomePackageReceiver);
     }
 
+    @Override
+    public void onDashboardCategoriesChanged() {
+        sendRebuildUI();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -97,7 +105,7 @@ public class DashboardSummary extends Fragment {
         return rootView;
     }
 
-    private void rebuildUI(Context context) {
+    private void rebuildUI(Context context, boolean forceRefresh) {
         if (!isAdded()) {
             Log.w(LOG_TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
             return;
@@ -106,18 +114,22 @@ public class DashboardSummary extends Fragment {
         long start = System.currentTimeMillis();
         final Resources res = getResources();
 
-        mDashboard.removeAllViews();
-
         List<DashboardCategory> categories =
-                ((SettingsActivity) context).getDashboardCategories(true);
+                ((SettingsActivity) context).getDashboardCategories(forceRefresh);
 
+        // Rebind the views already there, only adding or removing the ones that differ.
         final int count = categories.size();
 
         for (int n = 0; n < count; n++) {
             DashboardCategory category = categories.get(n);
 
-            View categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
-                    false);
+            View categoryView = mDashboard.getChildAt(n);
+            if (categoryView == null) {
+                categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
+                        false);
+                // Add the category
+                mDashboard.addView(categoryView);
+            }
 
             TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
             categoryLabel.setText(category.getTitle(res));
@@ -129,17 +141,26 @@ public class DashboardSummary extends Fragment {
             for (int i = 0; i < tilesCount; i++) {
                 DashboardTile tile = category.getTile(i);
 
-                DashboardTileView tileView = new DashboardTileView(context);
+                DashboardTileView tileView = (DashboardTileView) categoryContent.getChildAt(i);
+                if (tileView == null) {
+                    tileView = new DashboardTileView(context);
+                    categoryContent.addView(tileView);
+                } else if (tileView.getTile() == tile) {
+                    continue;
+                }
                 updateTileView(context, res, tile, tileView.getImageView(),
                         tileView.getTitleTextView(), tileView.getStatusTextView());
 
                 tileView.setTile(tile);
-
-                categoryContent.addView(tileView);
             }
-
-            // Add the category
-            mDashboard.addView(categoryView);
+            final int extraTiles = categoryContent.getChildCount() - tilesCount;
+            if (extraTiles > 0) {
+                categoryContent.removeViews(tilesCount, extraTiles);
+            }
+        }
+        final int extraCategories = mDashboard.getChildCount() - count;
+        if (extraCategories > 0) {
+            mDashboard.removeViews(count, extraCategories);
         }
         long delta = System.currentTimeMillis() - start;
         Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
@@ -26,6 +26,10 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -53,6 +57,18 @@ public class SearchResultsSummary extends Fragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Delay for coalescing the keystrokes before searching
+    private static final long SEARCH_DELAY_MS = 100;
+
+    /**
+     * Listener for the timings of each search, in milliseconds: time spent waiting before the
+     * query starts, querying the Index (which returns an already filled cursor) and binding the
+     * results to the list.
+     */
+    public interface SearchTimingsListener {
+        void onSearchTimings(String query, long queueMillis, long queryMillis, long bindMillis);
+    }
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
@@ -67,27 +83,71 @@ public class SearchResultsSummary extends Fragment {
     private ViewGroup mLayoutResults;
 
     private String mQuery;
+    private long mQueryTime;
 
     private boolean mShowResults;
 
+    private final Handler mHandler = new Handler();
+    private SearchTimingsListener mSearchTimingsListener;
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startSearchResultsTask();
+        }
+    };
+
     /**
      * A basic AsyncTask for updating the query results cursor
      */
     private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final long mQueuedTime;
+        private String mTaskQuery;
+        private long mStartTime;
+        private long mQueryEndTime;
+
+        public UpdateSearchResultsTask(long queuedTime) {
+            mQueuedTime = queuedTime;
+        }
+
+        public void cancelSearch() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+            mTaskQuery = params[0];
+            mStartTime = SystemClock.uptimeMillis();
+            final Cursor cursor;
+            try {
+                cursor = Index.getInstance(getActivity()).search(params[0], mCancellationSignal);
+            } catch (OperationCanceledException e) {
+                return null;
+            }
+            mQueryEndTime = SystemClock.uptimeMillis();
+            return cursor;
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setResultsCursor(cursor);
                 setResultsVisibility(cursor.getCount() > 0);
+                reportSearchTimings(mTaskQuery, mStartTime - mQueuedTime,
+                        mQueryEndTime - mStartTime, SystemClock.uptimeMillis() - mQueryEndTime);
             } else if (cursor != null) {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     /**
@@ -257,6 +317,20 @@ public class SearchResultsSummary extends Fragment {
         mSearchView = searchView;
     }
 
+    public void setSearchTimingsListener(SearchTimingsListener listener) {
+        mSearchTimingsListener = listener;
+    }
+
+    private void reportSearchTimings(String query, long queueMillis, long queryMillis,
+            long bindMillis) {
+        if (mSearchTimingsListener != null) {
+            mSearchTimingsListener.onSearchTimings(query, queueMillis, queryMillis, bindMillis);
+        } else if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "Search '" + query + "' queue: " + queueMillis + " query: " +
+                    queryMillis + " bind: " + bindMillis + " millis");
+        }
+    }
+
     private void setSuggestionsVisibility(boolean visible) {
         if (mLayoutSuggestions != null) {
             mLayoutSuggestions.setVisibility(visible ? View.VISIBLE : View.GONE);
@@ -277,7 +351,7 @@ public class SearchResultsSummary extends Fragment {
         mQuery = getFilteredQueryString(query);
         mShowResults = true;
         setSuggestionsVisibility(false);
-        updateSearchResults();
+        updateSearchResults(0);
         saveQueryToDatabase();
 
         return false;
@@ -295,7 +369,7 @@ public class SearchResultsSummary extends Fragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            updateSearchResults(SEARCH_DELAY_MS);
         }
 
         return true;
@@ -326,8 +400,9 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearResults() {
+        mHandler.removeCallbacks(mSearchRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelSearch();
             mUpdateSearchResultsTask = null;
         }
         setResultsCursor(null);
@@ -359,8 +434,9 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearAllTasks() {
+        mHandler.removeCallbacks(mSearchRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelSearch();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
@@ -379,15 +455,31 @@ public class SearchResultsSummary extends Fragment {
         }
     }
 
-    private void updateSearchResults() {
+    /**
+     * Search the current query after the given delay. A newer query cancels the pending or
+     * in progress search, so that keystrokes typed within the delay are coalesced.
+     */
+    private void updateSearchResults(long delayMillis) {
         clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mQueryTime = SystemClock.uptimeMillis();
+            if (delayMillis > 0) {
+                mHandler.postDelayed(mSearchRunnable, delayMillis);
+            } else {
+                startSearchResultsTask();
+            }
+        }
+    }
+
+    private void startSearchResultsTask() {
+        if (TextUtils.isEmpty(mQuery)) {
+            return;
         }
+        mUpdateSearchResultsTask = new UpdateSearchResultsTask(mQueryTime);
+        mUpdateSearchResultsTask.execute(mQuery);
     }
 
     private static class SuggestionItem {
@@ -36,6 +36,7 @@ import android.os.Message;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseLongArray;
 
@@ -43,13 +44,26 @@ import com.android.internal.app.IMediaContainerService;
 import com.google.android.collect.Maps;
 import com.google.android.collect.Sets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,6 +91,20 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Maximum number of directories measured at the same time. */
+    private static final int MAX_PARALLEL_MEASUREMENTS = 3;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_MEASUREMENTS, MAX_PARALLEL_MEASUREMENTS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final String PERSISTED_FILE_PREFIX = "storage_measurement_";
+    private static final int PERSISTED_VERSION = 1;
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -100,7 +128,7 @@ public class StorageMeasurement {
         public long availSize;
 
         /**
-         * Total apps disk usage.
+         * Total apps disk usage, or -1 if apps are still being measured.
          * <p>
          * When measuring internal storage, this value includes the code size of
          * all apps (regardless of install status for current user), and
@@ -114,7 +142,7 @@ public class StorageMeasurement {
         public long appsSize;
 
         /**
-         * Total cache disk usage by apps.
+         * Total cache disk usage by apps, or -1 if apps are still being measured.
          */
         public long cacheSize;
 
@@ -138,7 +166,8 @@ public class StorageMeasurement {
 
         /**
          * Total disk usage for users, which is only meaningful for emulated
-         * internal storage. Key is {@link UserHandle}.
+         * internal storage. Key is {@link UserHandle}. Users are missing while
+         * apps are still being measured.
          */
         public SparseLongArray usersSize = new SparseLongArray();
     }
@@ -158,6 +187,9 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    /** Last complete measurement, saved to be shown right away next time. */
+    private final AtomicFile mPersistedFile;
+
     private long mTotalSize;
     private long mAvailSize;
 
@@ -167,6 +199,8 @@ public class StorageMeasurement {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
+        mPersistedFile = new AtomicFile(new File(context.getCacheDir(), PERSISTED_FILE_PREFIX
+                + (mIsInternal ? "internal" : Integer.toHexString(volume.getPath().hashCode()))));
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -285,6 +319,7 @@ public class StorageMeasurement {
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_DIRECTORIES_COMPLETED = 6;
 
         private Object mLock = new Object();
 
@@ -294,6 +329,19 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        /** Last complete measurement read back from disk, until it has been shown. */
+        private MeasurementDetails mPersisted;
+        private boolean mPersistedRead;
+
+        /**
+         * Generation of the current measurement; bumped to drop the results of a
+         * measurement that was cancelled. Read from the pool threads.
+         */
+        private volatile int mGeneration;
+        private final ArrayList<Future<?>> mPendingTasks = new ArrayList<Future<?>>();
+        private boolean mDirectoriesDone;
+        private boolean mAppsDone;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -347,10 +395,12 @@ public class StorageMeasurement {
                 case MSG_CONNECTED: {
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
+                    sendPersistedUpdate();
                     measureExactStorage(imcs);
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    cancelMeasurement();
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -364,13 +414,21 @@ public class StorageMeasurement {
                     }
                     break;
                 }
+                case MSG_DIRECTORIES_COMPLETED: {
+                    if (msg.arg1 != mGeneration) break;
+                    mDirectoriesDone = true;
+                    onMeasurementProgress((MeasurementDetails) msg.obj);
+                    break;
+                }
                 case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
-                    sendExactUpdate(mCached);
+                    if (msg.arg1 != mGeneration) break;
+                    mAppsDone = true;
+                    onMeasurementProgress((MeasurementDetails) msg.obj);
                     break;
                 }
                 case MSG_INVALIDATE: {
                     mCached = null;
+                    cancelMeasurement();
                     break;
                 }
             }
@@ -390,14 +448,71 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
-        private void measureExactStorage(IMediaContainerService imcs) {
+        /**
+         * Drop the measurement in progress, if any.
+         */
+        private void cancelMeasurement() {
+            mGeneration++;
+            for (Future<?> task : mPendingTasks) {
+                task.cancel(true);
+            }
+            mPendingTasks.clear();
+        }
+
+        /**
+         * Show the directories as soon as they are measured, and keep the measurement
+         * once apps are measured as well.
+         */
+        private void onMeasurementProgress(MeasurementDetails details) {
+            if (mDirectoriesDone && mAppsDone) {
+                mPendingTasks.clear();
+                mCached = details;
+                sendExactUpdate(details);
+                writePersisted(details);
+            } else if (mDirectoriesDone) {
+                final MeasurementDetails partial = new MeasurementDetails();
+                synchronized (details) {
+                    partial.totalSize = details.totalSize;
+                    partial.availSize = details.availSize;
+                    partial.mediaSize.putAll(details.mediaSize);
+                    partial.miscSize = details.miscSize;
+                }
+                partial.appsSize = -1;
+                partial.cacheSize = -1;
+                sendExactUpdate(partial);
+            }
+        }
+
+        /**
+         * Show the last complete measurement saved to disk, if it was not shown yet, with
+         * the total and available sizes just measured.
+         */
+        private void sendPersistedUpdate() {
+            if (!mPersistedRead) {
+                mPersistedRead = true;
+                mPersisted = readPersisted(ActivityManager.getCurrentUser());
+            }
+            if (mPersisted != null) {
+                mPersisted.totalSize = mTotalSize;
+                mPersisted.availSize = mAvailSize;
+                sendExactUpdate(mPersisted);
+                mPersisted = null;
+            }
+        }
+
+        private void measureExactStorage(final IMediaContainerService imcs) {
             final Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
             }
 
+            cancelMeasurement();
+            final int generation = mGeneration;
+            mDirectoriesDone = false;
+            mAppsDone = false;
+
             final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            final Message finished = obtainMessage(MSG_COMPLETED, generation, 0, details);
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
@@ -409,31 +524,68 @@ public class StorageMeasurement {
             final int currentUser = ActivityManager.getCurrentUser();
             final UserEnvironment currentEnv = new UserEnvironment(currentUser);
 
+            // Directories are measured on the pool, and reported together once
+            // they are all measured
+            final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
             // Measure media types for emulated storage, or for primary physical
             // external volume
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
+                for (final String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    tasks.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long size = getDirectorySize(imcs, path);
+                            synchronized (details) {
+                                details.mediaSize.put(type, size);
+                            }
+                        }
+                    });
                 }
             }
 
             // Measure misc files not counted under media
+            final ArrayList<FileInfo> miscFiles = new ArrayList<FileInfo>();
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                addMiscTasks(imcs, path, details, miscFiles, tasks);
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
             for (UserInfo user : users) {
-                final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                final int userId = user.id;
+                final File path = new UserEnvironment(userId).getExternalStorageDirectory();
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long size = getDirectorySize(imcs, path);
+                        synchronized (details) {
+                            addValue(details.usersSize, userId, size);
+                        }
+                    }
+                });
+            }
+
+            final AtomicInteger remaining = new AtomicInteger(tasks.size());
+            for (final Runnable task : tasks) {
+                mPendingTasks.add(sExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) return;
+                        task.run();
+                        if (remaining.decrementAndGet() == 0) {
+                            onDirectoriesMeasured(generation, details, miscFiles);
+                        }
+                    }
+                }));
+            }
+            if (tasks.isEmpty()) {
+                onDirectoriesMeasured(generation, details, miscFiles);
             }
 
             // Measure all apps for all users
@@ -470,17 +622,31 @@ public class StorageMeasurement {
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+    private void onDirectoriesMeasured(int generation, MeasurementDetails details,
+            ArrayList<FileInfo> miscFiles) {
+        // sort the list of FileInfo objects collected in descending order of their sizes
+        synchronized (details) {
+            Collections.sort(miscFiles);
+        }
+        mFileInfoForMisc = miscFiles;
+        mHandler.obtainMessage(MeasurementHandler.MSG_DIRECTORIES_COMPLETED, generation, 0,
+                details).sendToTarget();
+    }
 
+    /**
+     * Add the tasks measuring the top level entries of the directory that are not counted
+     * as media, accumulating into {@link MeasurementDetails#miscSize} and the given list.
+     */
+    private static void addMiscTasks(final IMediaContainerService imcs, File dir,
+            final MeasurementDetails details, final List<FileInfo> miscFiles,
+            List<Runnable> tasks) {
         final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        if (files == null) return;
 
         // Get sizes of all top level nodes except the ones already computed
         long counter = 0;
-        long miscSize = 0;
 
-        for (File file : files) {
+        for (final File file : files) {
             final String path = file.getAbsolutePath();
             final String name = file.getName();
             if (sMeasureMediaTypes.contains(name)) {
@@ -489,21 +655,97 @@ public class StorageMeasurement {
 
             if (file.isFile()) {
                 final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
+                miscFiles.add(new FileInfo(path, fileSize, counter++));
+                details.miscSize += fileSize;
             } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                final long id = counter++;
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long dirSize = getDirectorySize(imcs, file);
+                        synchronized (details) {
+                            miscFiles.add(new FileInfo(path, dirSize, id));
+                            details.miscSize += dirSize;
+                        }
+                    }
+                });
             } else {
                 // Non directory, non file: not listed
             }
         }
+    }
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+    /**
+     * Read the last complete measurement measured for the given user, or null if there is
+     * none.
+     */
+    private MeasurementDetails readPersisted(int currentUser) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mPersistedFile.openRead()));
+            if (in.readInt() != PERSISTED_VERSION || in.readInt() != currentUser) {
+                return null;
+            }
+            final MeasurementDetails details = new MeasurementDetails();
+            details.totalSize = in.readLong();
+            details.availSize = in.readLong();
+            details.appsSize = in.readLong();
+            details.cacheSize = in.readLong();
+            details.miscSize = in.readLong();
+            final int mediaCount = in.readInt();
+            for (int i = 0; i < mediaCount; i++) {
+                details.mediaSize.put(in.readUTF(), in.readLong());
+            }
+            final int usersCount = in.readInt();
+            for (int i = 0; i < usersCount; i++) {
+                details.usersSize.put(in.readInt(), in.readLong());
+            }
+            return details;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read last measurement", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
 
-        return miscSize;
+    private void writePersisted(MeasurementDetails details) {
+        FileOutputStream fos = null;
+        try {
+            fos = mPersistedFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(PERSISTED_VERSION);
+            out.writeInt(ActivityManager.getCurrentUser());
+            out.writeLong(details.totalSize);
+            out.writeLong(details.availSize);
+            out.writeLong(details.appsSize);
+            out.writeLong(details.cacheSize);
+            out.writeLong(details.miscSize);
+            out.writeInt(details.mediaSize.size());
+            for (Map.Entry<String, Long> entry : details.mediaSize.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(details.usersSize.size());
+            for (int i = 0; i < details.usersSize.size(); i++) {
+                out.writeInt(details.usersSize.keyAt(i));
+                out.writeLong(details.usersSize.valueAt(i));
+            }
+            out.flush();
+            mPersistedFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write last measurement", e);
+            if (fos != null) {
+                mPersistedFile.failWrite(fos);
+            }
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
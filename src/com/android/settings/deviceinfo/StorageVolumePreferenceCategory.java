@@ -345,7 +345,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
         updatePreference(mItemMisc, details.miscSize);
 
         for (StorageItemPreference userPref : mItemUsers) {
-            final long userSize = details.usersSize.get(userPref.userHandle);
+            final long userSize = details.usersSize.get(userPref.userHandle, -1);
             updatePreference(userPref, userSize);
         }
 
@@ -353,7 +353,10 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
     }
 
     private void updatePreference(StorageItemPreference pref, long size) {
-        if (size > 0) {
+        if (size < 0) {
+            // Still being measured
+            return;
+        } else if (size > 0) {
             pref.setSummary(formatSize(size));
             final int order = pref.getOrder();
             mUsageBarPreference.addEntry(order, size / (float) mTotalSize, pref.color);
@@ -32,6 +32,7 @@ import android.os.UserManager;
 import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -124,7 +125,8 @@ public class BatteryEntry {
     static class UidToDetail {
         String name;
         String packageName;
-        Drawable icon;
+        // The icon itself is kept by the bounded AppIconCache.
+        ApplicationInfo iconInfo;
     }
 
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
@@ -205,14 +207,20 @@ public class BatteryEntry {
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
         final String uidString = Integer.toString(uid);
+        PackageManager pm = context.getPackageManager();
         if (sUidCache.containsKey(uidString)) {
             UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
-            return;
+            Drawable cachedIcon = utd.iconInfo != null
+                    ? AppIconCache.getInstance(context).getIcon(utd.iconInfo)
+                    : pm.getDefaultActivityIcon();
+            if (cachedIcon != null) {
+                defaultPackageName = utd.packageName;
+                name = utd.name;
+                icon = cachedIcon;
+                return;
+            }
+            // The icon was evicted, load it again in the background.
         }
-        PackageManager pm = context.getPackageManager();
         String[] packages = pm.getPackagesForUid(uid);
         icon = pm.getDefaultActivityIcon();
         if (packages == null) {
@@ -244,8 +252,10 @@ public class BatteryEntry {
             return;
         }
         PackageManager pm = context.getPackageManager();
+        final AppIconCache iconCache = AppIconCache.getInstance(context);
         final int uid = sipper.uidObj.getUid();
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
+        ApplicationInfo iconInfo = null;
         sipper.mPackages = pm.getPackagesForUid(uid);
         if (sipper.mPackages == null) {
             name = Integer.toString(uid);
@@ -267,13 +277,14 @@ public class BatteryEntry {
                             + packageLabels[i] + ", user " + userId);
                     continue;
                 }
-                CharSequence label = ai.loadLabel(pm);
+                CharSequence label = iconCache.loadLabel(ai, pm);
                 if (label != null) {
                     packageLabels[i] = label.toString();
                 }
                 if (ai.icon != 0) {
                     defaultPackageName = sipper.mPackages[i];
-                    icon = ai.loadIcon(pm);
+                    icon = iconCache.loadIcon(ai, pm);
+                    iconInfo = ai;
                     break;
                 }
             } catch (RemoteException e) {
@@ -304,7 +315,8 @@ public class BatteryEntry {
                             name = nm.toString();
                             if (pi.applicationInfo.icon != 0) {
                                 defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
+                                icon = iconCache.loadIcon(pi.applicationInfo, pm);
+                                iconInfo = pi.applicationInfo;
                             }
                             break;
                         }
@@ -318,7 +330,7 @@ public class BatteryEntry {
         final String uidString = Integer.toString(sipper.uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
-        utd.icon = icon;
+        utd.iconInfo = iconInfo;
         utd.packageName = defaultPackageName;
         sUidCache.put(uidString, utd);
         if (sHandler != null) {
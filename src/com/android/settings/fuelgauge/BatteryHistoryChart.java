@@ -45,7 +45,9 @@ import android.util.TypedValue;
 import android.view.View;
 import libcore.icu.LocaleData;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -116,6 +118,103 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * The history records needed to draw the chart, decoded once per {@link BatteryStats}
+     * so that the chart can be rebuilt, for example on rotation, without iterating the
+     * history again. Records are stored as parallel arrays. Every update is kept, even when
+     * it does not change the battery level or states: the chart defers a level change that
+     * falls in the column of the last point to the next update.
+     */
+    static final class HistoryTimeline {
+        int mSize;
+        long[] mTime = new long[256];
+        byte[] mCmd = new byte[256];
+        byte[] mBatteryLevel = new byte[256];
+        int[] mStates = new int[256];
+        int[] mStates2 = new int[256];
+        long[] mCurrentTime = new long[256];
+
+        // Number of records up to the last update; later records are not drawn.
+        int mNumHist;
+        long mHistStart;
+        long mHistDataEnd;
+        long mStartWallTime;
+        long mLastWallTime;
+        long mLastRealtime;
+        int mAggrStates;
+        int mAggrStates2;
+
+        static HistoryTimeline build(BatteryStats stats) {
+            final HistoryTimeline timeline = new HistoryTimeline();
+            if (!stats.startIteratingHistoryLocked()) {
+                return timeline;
+            }
+            final HistoryItem rec = new HistoryItem();
+            boolean first = true;
+            while (stats.getNextHistoryLocked(rec)) {
+                if (first) {
+                    first = false;
+                    timeline.mHistStart = rec.time;
+                }
+                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                        || rec.cmd == HistoryItem.CMD_RESET) {
+                    // If there is a ridiculously large jump in time, then we won't be
+                    // able to create a good chart with that data, so just ignore the
+                    // times we got before and pretend like our data extends back from
+                    // the time we have now.
+                    // Also, if we are getting a time change and we are less than 5 minutes
+                    // since the start of the history real time, then also use this new
+                    // time to compute the base time, since whatever time we had before is
+                    // pretty much just noise.
+                    if (rec.currentTime > (timeline.mLastWallTime+(180*24*60*60*1000L))
+                            || rec.time < (timeline.mHistStart+(5*60*1000L))) {
+                        timeline.mStartWallTime = 0;
+                    }
+                    timeline.mLastWallTime = rec.currentTime;
+                    timeline.mLastRealtime = rec.time;
+                    if (timeline.mStartWallTime == 0) {
+                        timeline.mStartWallTime = timeline.mLastWallTime
+                                - (timeline.mLastRealtime-timeline.mHistStart);
+                    }
+                }
+                if (rec.isDeltaData()) {
+                    timeline.mHistDataEnd = rec.time;
+                    timeline.mAggrStates |= rec.states;
+                    timeline.mAggrStates2 |= rec.states2;
+                    timeline.add(rec);
+                    timeline.mNumHist = timeline.mSize;
+                } else {
+                    timeline.add(rec);
+                }
+            }
+            stats.finishIteratingHistoryLocked();
+            return timeline;
+        }
+
+        private void add(HistoryItem rec) {
+            if (mSize == mTime.length) {
+                final int size = mSize * 2;
+                mTime = Arrays.copyOf(mTime, size);
+                mCmd = Arrays.copyOf(mCmd, size);
+                mBatteryLevel = Arrays.copyOf(mBatteryLevel, size);
+                mStates = Arrays.copyOf(mStates, size);
+                mStates2 = Arrays.copyOf(mStates2, size);
+                mCurrentTime = Arrays.copyOf(mCurrentTime, size);
+            }
+            mTime[mSize] = rec.time;
+            mCmd[mSize] = rec.cmd;
+            mBatteryLevel[mSize] = rec.batteryLevel;
+            mStates[mSize] = rec.states;
+            mStates2[mSize] = rec.states2;
+            mCurrentTime[mSize] = rec.currentTime;
+            mSize++;
+        }
+    }
+
+    // Timeline of the last stats shown, kept while they are shown in the process.
+    private static WeakReference<BatteryStats> sTimelineStats;
+    private static HistoryTimeline sTimeline;
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -153,6 +252,7 @@ public class BatteryHistoryChart extends View {
     final Path mDateLinePath = new Path();
     
     BatteryStats mStats;
+    HistoryTimeline mTimeline;
     Intent mBatteryBroadcast;
     long mStatsPeriod;
     int mBatteryLevel;
@@ -541,64 +641,26 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
+        if (sTimelineStats == null || sTimelineStats.get() != stats) {
+            sTimeline = HistoryTimeline.build(stats);
+            sTimelineStats = new WeakReference<BatteryStats>(stats);
+        }
+        final HistoryTimeline timeline = sTimeline;
+        mTimeline = timeline;
+
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
-            }
-        }
+        mHistStart = timeline.mHistStart;
+        mHistDataEnd = timeline.mHistDataEnd;
+        mStartWallTime = timeline.mStartWallTime;
+        final long lastWallTime = timeline.mLastWallTime;
+        final long lastRealtime = timeline.mLastRealtime;
+        final int aggrStates = timeline.mAggrStates;
+        final int aggrStates2 = timeline.mAggrStates2;
         mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
         mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
         mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
+        mNumHist = timeline.mNumHist;
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
                 || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
@@ -782,12 +844,17 @@ public class BatteryHistoryChart extends View {
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
         final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        final HistoryTimeline timeline = mTimeline;
+        if (mEndDataWallTime > mStartWallTime) {
+            for (i = 0; i < N; i++) {
+                final byte cmd = timeline.mCmd[i];
+                final long time = timeline.mTime[i];
+                final byte batteryLevel = timeline.mBatteryLevel[i];
+                final int states = timeline.mStates[i];
+                final int states2 = timeline.mStates2[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
@@ -802,14 +869,14 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = batteryLevel;
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -840,7 +907,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -851,7 +918,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -862,7 +929,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -873,7 +940,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -894,7 +961,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -909,7 +976,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -921,14 +988,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -938,18 +1005,18 @@ public class BatteryHistoryChart extends View {
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        if (timeline.mCurrentTime[i] >= mStartWallTime) {
+                            curWalltime = timeline.mCurrentTime[i];
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = mStartWallTime + (time-mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
                             finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
@@ -962,10 +1029,7 @@ public class BatteryHistoryChart extends View {
                         }
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
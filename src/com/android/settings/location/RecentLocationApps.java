@@ -18,15 +18,18 @@ package com.android.settings.location;
 
 import android.app.AppGlobals;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.IPackageManager;
-import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.Preference;
@@ -34,11 +37,15 @@ import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.applications.InstalledAppDetails;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -50,6 +57,22 @@ public class RecentLocationApps {
 
     private static final int RECENT_TIME_INTERVAL_MILLIS = 15 * 60 * 1000;
 
+    /**
+     * How long the location usage read from AppOps is reused before querying it again.
+     */
+    private static final long ENTRIES_TTL_MILLIS = 30 * 1000;
+
+    /**
+     * Location usage of the packages, keyed by uid and package name. Guards the other static
+     * fields.
+     */
+    private static final HashMap<String, AppEntry> sEntries = new HashMap<String, AppEntry>();
+
+    // Time of the last AppOps query in elapsed realtime, 0 if the entries must be queried.
+    private static long sLastQueryTime;
+
+    private static BroadcastReceiver sPackageReceiver;
+
     private final SettingsActivity mActivity;
     private final PackageManager mPackageManager;
 
@@ -101,64 +124,174 @@ public class RecentLocationApps {
      * Fills a list of applications which queried location recently within specified time.
      */
     public List<Preference> getAppList() {
-        // Retrieve a location usage list from AppOps
-        AppOpsManager aoManager =
-                (AppOpsManager) mActivity.getSystemService(Context.APP_OPS_SERVICE);
-        List<AppOpsManager.PackageOps> appOps = aoManager.getPackagesForOps(new int[] {
-                AppOpsManager.OP_MONITOR_LOCATION, AppOpsManager.OP_MONITOR_HIGH_POWER_LOCATION, });
-
-        // Process the AppOps list and generate a preference list.
         ArrayList<Preference> prefs = new ArrayList<Preference>();
         final long now = System.currentTimeMillis();
         final UserManager um = (UserManager) mActivity.getSystemService(Context.USER_SERVICE);
         final List<UserHandle> profiles = um.getUserProfiles();
 
-        final int appOpsN = appOps.size();
+        synchronized (sEntries) {
+            refreshEntriesLocked(mActivity);
+            for (AppEntry entry : sEntries.values()) {
+                // Don't show apps belonging to background users except managed users.
+                if (!profiles.contains(entry.userHandle)) {
+                    continue;
+                }
+                Preference preference = getPreferenceFromEntry(now, entry);
+                if (preference != null) {
+                    prefs.add(preference);
+                }
+            }
+        }
+
+        return prefs;
+    }
+
+    /**
+     * Queries AppOps again for the location usage if it was not done within
+     * {@link #ENTRIES_TTL_MILLIS}, and updates the entries with it. The label and icon of
+     * the packages already known are kept.
+     */
+    private static void refreshEntriesLocked(Context context) {
+        final long elapsed = SystemClock.elapsedRealtime();
+        if (sLastQueryTime != 0 && elapsed - sLastQueryTime < ENTRIES_TTL_MILLIS) {
+            return;
+        }
+        registerPackageReceiverLocked(context);
+
+        // Retrieve a location usage list from AppOps
+        AppOpsManager aoManager =
+                (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        List<AppOpsManager.PackageOps> appOps = aoManager.getPackagesForOps(new int[] {
+                AppOpsManager.OP_MONITOR_LOCATION, AppOpsManager.OP_MONITOR_HIGH_POWER_LOCATION, });
+        sLastQueryTime = elapsed;
+
+        final HashSet<String> seen = new HashSet<String>();
+        final int appOpsN = appOps != null ? appOps.size() : 0;
         for (int i = 0; i < appOpsN; ++i) {
             AppOpsManager.PackageOps ops = appOps.get(i);
             // Don't show the Android System in the list - it's not actionable for the user.
-            // Also don't show apps belonging to background users except managed users.
             String packageName = ops.getPackageName();
             int uid = ops.getUid();
-            int userId = UserHandle.getUserId(uid);
             boolean isAndroidOs =
                     (uid == Process.SYSTEM_UID) && ANDROID_SYSTEM_PACKAGE_NAME.equals(packageName);
-            if (isAndroidOs || !profiles.contains(new UserHandle(userId))) {
+            if (isAndroidOs) {
                 continue;
             }
-            Preference preference = getPreferenceFromOps(um, now, ops);
-            if (preference != null) {
-                prefs.add(preference);
+            final String key = AppEntry.getKey(uid, packageName);
+            AppEntry entry = sEntries.get(key);
+            if (entry == null) {
+                entry = new AppEntry(packageName, uid);
+                sEntries.put(key, entry);
             }
+            entry.updateFromOps(ops);
+            seen.add(key);
         }
+        sEntries.keySet().retainAll(seen);
+    }
 
-        return prefs;
+    /**
+     * Forgets the entries of packages that changed or went away, so that their label and icon
+     * are loaded again, and queries AppOps on the next request.
+     */
+    private static void registerPackageReceiverLocked(Context context) {
+        if (sPackageReceiver != null) {
+            return;
+        }
+        sPackageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final String packageName = intent.getData() != null
+                        ? intent.getData().getSchemeSpecificPart() : null;
+                synchronized (sEntries) {
+                    final Iterator<AppEntry> it = sEntries.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next().packageName.equals(packageName)) {
+                            it.remove();
+                        }
+                    }
+                    sLastQueryTime = 0;
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiverAsUser(sPackageReceiver, UserHandle.ALL,
+                filter, null, null);
     }
 
     /**
-     * Creates a Preference entry for the given PackageOps.
+     * Creates a Preference entry for the given AppEntry.
      *
-     * This method examines the time interval of the PackageOps first. If the PackageOps is older
-     * than the designated interval, this method ignores the PackageOps object and returns null.
-     * When the PackageOps is fresh enough, this method returns a Preference pointing to the App
-     * Info page for that package.
+     * This method examines the last location access of the entry first. If it is older than
+     * the designated interval, this method ignores the entry and returns null. When the entry
+     * is fresh enough, this method returns a Preference pointing to the App Info page for that
+     * package.
      */
-    private Preference getPreferenceFromOps(final UserManager um, long now,
-            AppOpsManager.PackageOps ops) {
-        String packageName = ops.getPackageName();
-        List<AppOpsManager.OpEntry> entries = ops.getOps();
-        boolean highBattery = false;
-        boolean normalBattery = false;
+    private Preference getPreferenceFromEntry(long now, AppEntry entry) {
         // Earliest time for a location request to end and still be shown in list.
         long recentLocationCutoffTime = now - RECENT_TIME_INTERVAL_MILLIS;
-        for (AppOpsManager.OpEntry entry : entries) {
-            if (entry.isRunning() || entry.getTime() >= recentLocationCutoffTime) {
+        boolean highBattery = entry.highPowerTime >= recentLocationCutoffTime;
+        boolean normalBattery = entry.normalTime >= recentLocationCutoffTime;
+
+        if (!highBattery && !normalBattery) {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, entry.packageName + " hadn't used location within the time interval.");
+            }
+            return null;
+        }
+
+        // The package is fresh enough, continue.
+        if (!entry.ensureLabelAndIcon(mActivity, mPackageManager)) {
+            return null;
+        }
+        return createRecentLocationEntry(entry.newIcon(mActivity, mPackageManager),
+                entry.label, highBattery, entry.badgedLabel,
+                new PackageEntryClickedListener(entry.packageName, entry.userHandle));
+    }
+
+    /**
+     * Last location access of a package of a user, and its resolved label and icon. The icon
+     * is kept as a constant state so that each Preference gets its own drawable, and the
+     * entries shared by all the location screens don't hold on to their views.
+     */
+    private static final class AppEntry {
+        final String packageName;
+        final int uid;
+        final UserHandle userHandle;
+
+        // Last access time of each op, Long.MAX_VALUE while running.
+        long normalTime;
+        long highPowerTime;
+
+        boolean resolved;
+        ApplicationInfo appInfo;
+        Drawable.ConstantState iconState;
+        CharSequence label;
+        CharSequence badgedLabel;
+
+        AppEntry(String packageName, int uid) {
+            this.packageName = packageName;
+            this.uid = uid;
+            this.userHandle = new UserHandle(UserHandle.getUserId(uid));
+        }
+
+        static String getKey(int uid, String packageName) {
+            return uid + ":" + packageName;
+        }
+
+        void updateFromOps(AppOpsManager.PackageOps ops) {
+            normalTime = 0;
+            highPowerTime = 0;
+            for (AppOpsManager.OpEntry entry : ops.getOps()) {
+                final long time = entry.isRunning() ? Long.MAX_VALUE : entry.getTime();
                 switch (entry.getOp()) {
                     case AppOpsManager.OP_MONITOR_LOCATION:
-                        normalBattery = true;
+                        normalTime = Math.max(normalTime, time);
                         break;
                     case AppOpsManager.OP_MONITOR_HIGH_POWER_LOCATION:
-                        highBattery = true;
+                        highPowerTime = Math.max(highPowerTime, time);
                         break;
                     default:
                         break;
@@ -166,48 +299,57 @@ public class RecentLocationApps {
             }
         }
 
-        if (!highBattery && !normalBattery) {
-            if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                Log.v(TAG, packageName + " hadn't used location within the time interval.");
+        /**
+         * Loads the label and icon of the package if not done yet. Returns false if the
+         * package could not be found.
+         */
+        boolean ensureLabelAndIcon(Context context, PackageManager pm) {
+            if (resolved) {
+                return appInfo != null;
             }
-            return null;
+            resolved = true;
+            final int userId = userHandle.getIdentifier();
+            try {
+                IPackageManager ipm = AppGlobals.getPackageManager();
+                appInfo =
+                        ipm.getApplicationInfo(packageName, PackageManager.GET_META_DATA, userId);
+                if (appInfo == null) {
+                    Log.w(TAG, "Null application info retrieved for package " + packageName
+                            + ", userId " + userId);
+                    return false;
+                }
+                CharSequence appLabel =
+                        AppIconCache.getInstance(context).loadLabel(appInfo, pm);
+                badgedLabel = pm.getUserBadgedLabel(appLabel, userHandle);
+                if (appLabel.toString().contentEquals(badgedLabel)) {
+                    // If badged label is not different from original then no need for it as
+                    // a separate content description.
+                    badgedLabel = null;
+                }
+                label = appLabel;
+                iconState = loadBadgedIcon(context, pm).getConstantState();
+            } catch (RemoteException e) {
+                Log.w(TAG, "Error while retrieving application info for package " + packageName
+                        + ", userId " + userId, e);
+                // Try again next time.
+                resolved = false;
+            }
+            return appInfo != null;
         }
 
-        // The package is fresh enough, continue.
-
-        int uid = ops.getUid();
-        int userId = UserHandle.getUserId(uid);
-
-        DimmableIconPreference preference = null;
-        try {
-            IPackageManager ipm = AppGlobals.getPackageManager();
-            ApplicationInfo appInfo =
-                    ipm.getApplicationInfo(packageName, PackageManager.GET_META_DATA, userId);
-            if (appInfo == null) {
-                Log.w(TAG, "Null application info retrieved for package " + packageName
-                        + ", userId " + userId);
-                return null;
+        /**
+         * Returns a new drawable of the badged icon, to be used by a single Preference.
+         */
+        Drawable newIcon(Context context, PackageManager pm) {
+            if (iconState != null) {
+                return iconState.newDrawable(context.getResources());
             }
-            Resources res = mActivity.getResources();
-
-            final UserHandle userHandle = new UserHandle(userId);
-            Drawable appIcon = mPackageManager.getApplicationIcon(appInfo);
-            Drawable icon = mPackageManager.getUserBadgedIcon(appIcon, userHandle);
-            CharSequence appLabel = mPackageManager.getApplicationLabel(appInfo);
-            CharSequence badgedAppLabel = mPackageManager.getUserBadgedLabel(appLabel, userHandle);
-            if (appLabel.toString().contentEquals(badgedAppLabel)) {
-                // If badged label is not different from original then no need for it as
-                // a separate content description.
-                badgedAppLabel = null;
-            }
-            preference = createRecentLocationEntry(icon,
-                    appLabel, highBattery, badgedAppLabel,
-                    new PackageEntryClickedListener(packageName, userHandle));
-        } catch (RemoteException e) {
-            Log.w(TAG, "Error while retrieving application info for package " + packageName
-                    + ", userId " + userId, e);
+            return loadBadgedIcon(context, pm);
         }
 
-        return preference;
+        private Drawable loadBadgedIcon(Context context, PackageManager pm) {
+            final Drawable appIcon = AppIconCache.getInstance(context).loadIcon(appInfo, pm);
+            return pm.getUserBadgedIcon(appIcon, userHandle);
+        }
     }
 }
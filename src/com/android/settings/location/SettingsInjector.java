@@ -46,6 +46,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -71,6 +72,24 @@ class SettingsInjector {
      */
     private static final long INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS = 1000;
 
+    /**
+     * Maximum number of settings whose status is being loaded at once, not counting the ones
+     * that timed out.
+     */
+    private static final int MAX_CONCURRENT_LOADS = 3;
+
+    /**
+     * Maximum number of settings that timed out and may still be running, after which we wait
+     * for them before loading more.
+     */
+    private static final int MAX_TIMED_OUT_LOADS = 2;
+
+    /**
+     * Upper bounds of the buckets of the latency histograms, the last bucket counts the slower
+     * loads.
+     */
+    private static final long[] LATENCY_BUCKETS_MILLIS = { 100, 250, 500, 1000, 2500 };
+
     /**
      * {@link Message#what} value for starting to load status values
      * in case we aren't already in the process of loading them.
@@ -87,6 +106,17 @@ class SettingsInjector {
      */
     private static final int WHAT_TIMEOUT = 3;
 
+    /**
+     * Last status received for each setting, so that rows show it right away the next time
+     * they are created. Keyed by {@link #getStatusKey}.
+     */
+    private static final HashMap<String, Boolean> sLastEnabled = new HashMap<String, Boolean>();
+
+    /**
+     * Number of status loads per latency bucket for each setting, keyed by {@link #getStatusKey}.
+     */
+    private static final HashMap<String, int[]> sLatencyHistograms = new HashMap<String, int[]>();
+
     private final Context mContext;
 
     /**
@@ -278,12 +308,46 @@ class SettingsInjector {
         pref.setTitle(info.title);
         pref.setSummary(null);
         pref.setIcon(icon);
+        final Boolean enabled = sLastEnabled.get(getStatusKey(info));
+        if (enabled != null) {
+            pref.setEnabled(enabled);
+        }
         pref.setOnPreferenceClickListener(new ServiceSettingClickedListener(info));
 
         prefs.add(pref);
         return pref;
     }
 
+    private static String getStatusKey(InjectedSetting info) {
+        return info.packageName + '/' + info.className + '/' + info.mUserHandle.getIdentifier();
+    }
+
+    /**
+     * Records how long it took to receive the status of a setting, and logs the histogram of
+     * the latencies of the setting.
+     */
+    private static void recordLatency(InjectedSetting info, long elapsed) {
+        final String key = getStatusKey(info);
+        int[] histogram = sLatencyHistograms.get(key);
+        if (histogram == null) {
+            histogram = new int[LATENCY_BUCKETS_MILLIS.length + 1];
+            sLatencyHistograms.put(key, histogram);
+        }
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length && elapsed > LATENCY_BUCKETS_MILLIS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            StringBuilder sb = new StringBuilder(key).append(" latencies:");
+            for (int i = 0; i < histogram.length; i++) {
+                sb.append(i < LATENCY_BUCKETS_MILLIS.length ? " <=" + LATENCY_BUCKETS_MILLIS[i]
+                        : " >" + LATENCY_BUCKETS_MILLIS[i - 1]).append("ms: ").append(histogram[i]);
+            }
+            Log.d(TAG, sb.toString());
+        }
+    }
+
     private class ServiceSettingClickedListener
             implements Preference.OnPreferenceClickListener {
         private InjectedSetting mInfo;
@@ -306,9 +370,9 @@ class SettingsInjector {
     }
 
     /**
-     * Loads the setting status values one at a time. Each load starts a subclass of {@link
-     * SettingInjectorService}, so to reduce memory pressure we don't want to load too many at
-     * once.
+     * Loads the setting status values, up to {@link #MAX_CONCURRENT_LOADS} at a time. Each load
+     * starts a subclass of {@link SettingInjectorService}, so to reduce memory pressure we don't
+     * want to load too many at once.
      */
     private final class StatusLoadingHandler extends Handler {
 
@@ -318,15 +382,15 @@ class SettingsInjector {
         private Set<Setting> mSettingsToLoad = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded now and haven't timed out. In practice this should have
-         * zero or one elements.
+         * Settings that are being loaded now and haven't timed out. Has at most
+         * {@link #MAX_CONCURRENT_LOADS} elements.
          */
         private Set<Setting> mSettingsBeingLoaded = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded but have timed out. If only one setting has timed out, we
-         * will go ahead and start loading the next setting so that one slow load won't delay the
-         * load of the other settings.
+         * Settings that are being loaded but have timed out. Until more than
+         * {@link #MAX_TIMED_OUT_LOADS} settings have timed out, we go ahead and start loading the
+         * next settings so that slow loads won't delay the load of the other settings.
          */
         private Set<Setting> mTimedOutSettings = new HashSet<Setting>();
 
@@ -346,6 +410,7 @@ class SettingsInjector {
                 case WHAT_RECEIVED_STATUS:
                     final Setting receivedSetting = (Setting) msg.obj;
                     receivedSetting.maybeLogElapsedTime();
+                    recordLatency(receivedSetting.setting, receivedSetting.getElapsedTime());
                     mSettingsBeingLoaded.remove(receivedSetting);
                     mTimedOutSettings.remove(receivedSetting);
                     removeMessages(WHAT_TIMEOUT, receivedSetting);
@@ -363,19 +428,6 @@ class SettingsInjector {
                     Log.wtf(TAG, "Unexpected what: " + msg);
             }
 
-            // Decide whether to load additional settings based on the new state. Start by seeing
-            // if we have headroom to load another setting.
-            if (mSettingsBeingLoaded.size() > 0 || mTimedOutSettings.size() > 1) {
-                // Don't load any more settings until one of the pending settings has completed.
-                // To reduce memory pressure, we want to be loading at most one setting (plus at
-                // most one timed-out setting) at a time. This means we'll be responsible for
-                // bringing in at most two services.
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "too many services already live for " + msg + ", " + this);
-                }
-                return;
-            }
-
             if (mReloadRequested && mSettingsToLoad.isEmpty() && mSettingsBeingLoaded.isEmpty()
                     && mTimedOutSettings.isEmpty()) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -386,29 +438,38 @@ class SettingsInjector {
                 mReloadRequested = false;
             }
 
-            // Remove the next setting to load from the queue, if any
+            // Start loading as many settings as we have headroom for.
             Iterator<Setting> iter = mSettingsToLoad.iterator();
-            if (!iter.hasNext()) {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+            while (iter.hasNext()) {
+                if (mSettingsBeingLoaded.size() >= MAX_CONCURRENT_LOADS
+                        || mTimedOutSettings.size() > MAX_TIMED_OUT_LOADS) {
+                    // Don't load any more settings until one of the pending settings has
+                    // completed. To reduce memory pressure, we bound the number of services we
+                    // are responsible for bringing in.
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "too many services already live for " + msg + ", " + this);
+                    }
+                    return;
                 }
-                return;
-            }
-            Setting setting = iter.next();
-            iter.remove();
+                Setting setting = iter.next();
+                iter.remove();
 
-            // Request the status value
-            setting.startService();
-            mSettingsBeingLoaded.add(setting);
+                // Request the status value
+                setting.startService();
+                mSettingsBeingLoaded.add(setting);
 
-            // Ensure that if receiving the status value takes too long, we start loading the
-            // next value anyway
-            Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
-            sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+                // Ensure that if receiving the status value takes too long, we start loading the
+                // next value anyway
+                Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
+                sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
 
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "handleMessage end " + msg + ", " + this
-                        + ", started loading " + setting);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleMessage " + msg + ", " + this
+                            + ", started loading " + setting);
+                }
+            }
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "nothing left to do for " + msg + ", " + this);
             }
         }
 
@@ -474,6 +535,7 @@ class SettingsInjector {
                     }
                     preference.setSummary(null);
                     preference.setEnabled(enabled);
+                    sLastEnabled.put(getStatusKey(setting), enabled);
                     mHandler.sendMessage(
                             mHandler.obtainMessage(WHAT_RECEIVED_STATUS, Setting.this));
                 }
@@ -486,10 +548,8 @@ class SettingsInjector {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, setting + ": sending update intent: " + intent
                         + ", handler: " + handler);
-                startMillis = SystemClock.elapsedRealtime();
-            } else {
-                startMillis = 0;
             }
+            startMillis = SystemClock.elapsedRealtime();
 
             // Start the service, making sure that this is attributed to the user associated with
             // the setting rather than the system user.
@@ -502,7 +562,7 @@ class SettingsInjector {
         }
 
         public void maybeLogElapsedTime() {
-            if (Log.isLoggable(TAG, Log.DEBUG) && startMillis != 0) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
                 long elapsed = getElapsedTime();
                 Log.d(TAG, this + " update took " + elapsed + " millis");
             }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.LruCache;
+
+import java.util.Objects;
+
+/**
+ * Process-wide cache of the {@link NetworkStatsHistory} read from the stats service, so that
+ * switching tabs or apps does not read the same history over binder again.
+ *
+ * Histories are keyed by template, uid, set and fields, and evicted in LRU order by their
+ * estimated size. The returned histories are shared and must not be modified. Call
+ * {@link #invalidateIfChanged} or {@link #invalidate()} once the stats service has recorded
+ * new data.
+ */
+public class NetworkHistoryCache {
+    private static final int MAX_SIZE_BYTES = 1024 * 1024;
+
+    // Uid used in the key of the history of the whole network.
+    private static final int UID_NETWORK = -1;
+
+    private static final LruCache<Key, NetworkStatsHistory> sHistories =
+            new LruCache<Key, NetworkStatsHistory>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Key key, NetworkStatsHistory history) {
+            // Bucket start plus one long per requested field, for each bucket.
+            return 64 + history.size() * 8 * (1 + Integer.bitCount(key.fields));
+        }
+    };
+
+    private static final class Key {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+
+        Key(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return uid == other.uid && set == other.set && fields == other.fields
+                    && Objects.equals(template, other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(template, uid, set, fields);
+        }
+    }
+
+    /**
+     * Same as {@link INetworkStatsSession#getHistoryForNetwork}, but cached.
+     */
+    public static NetworkStatsHistory getHistoryForNetwork(INetworkStatsSession session,
+            NetworkTemplate template, int fields) throws RemoteException {
+        final Key key = new Key(template, UID_NETWORK, 0, fields);
+        NetworkStatsHistory history = sHistories.get(key);
+        if (history == null) {
+            history = session.getHistoryForNetwork(template, fields);
+            sHistories.put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * Same as {@link INetworkStatsSession#getHistoryForUid} without tag, but cached.
+     */
+    public static NetworkStatsHistory getHistoryForUid(INetworkStatsSession session,
+            NetworkTemplate template, int uid, int set, int fields) throws RemoteException {
+        final Key key = new Key(template, uid, set, fields);
+        NetworkStatsHistory history = sHistories.get(key);
+        if (history == null) {
+            history = session.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            sHistories.put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * Called after the stats service recorded new data: read the network history of the
+     * template again, and keep its cached histories only if it did not change. The histories
+     * of other templates are forgotten since they were not checked.
+     *
+     * @return whether the history of the template changed.
+     */
+    public static boolean invalidateIfChanged(INetworkStatsSession session,
+            NetworkTemplate template, int fields) throws RemoteException {
+        final Key key = new Key(template, UID_NETWORK, 0, fields);
+        final NetworkStatsHistory cached = sHistories.get(key);
+        final NetworkStatsHistory history = session.getHistoryForNetwork(template, fields);
+        final boolean changed = cached == null || cached.size() != history.size()
+                || cached.getTotalBytes() != history.getTotalBytes();
+        for (Key other : sHistories.snapshot().keySet()) {
+            if (changed || !Objects.equals(template, other.template)) {
+                sHistories.remove(other);
+            }
+        }
+        sHistories.put(key, history);
+        return changed;
+    }
+
+    /**
+     * Forget all histories.
+     */
+    public static void invalidate() {
+        sHistories.evictAll();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.text.format.DateUtils.SECOND_IN_MILLIS;
+
+import android.net.INetworkStatsService;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Rate-limits the requests made to the stats service to record new data, so that
+ * coming back to the data usage screen or switching tabs repeatedly does not make it
+ * poll the network interfaces each time.
+ */
+public class NetworkStatsRefresher {
+    private static final long MIN_REFRESH_INTERVAL = 30 * SECOND_IN_MILLIS;
+
+    // Time of the last refresh in elapsed realtime, 0 if there was none.
+    private static long sLastRefresh;
+
+    /**
+     * Whether a call to {@link #refreshIfNeeded} would refresh the stats.
+     */
+    public static synchronized boolean isRefreshNeeded() {
+        return sLastRefresh == 0
+                || SystemClock.elapsedRealtime() - sLastRefresh >= MIN_REFRESH_INTERVAL;
+    }
+
+    /**
+     * Ask the stats service to record new data, unless it was done less than
+     * MIN_REFRESH_INTERVAL ago. Makes a blocking call, do not call on the main thread.
+     *
+     * @return whether the stats were refreshed.
+     */
+    public static boolean refreshIfNeeded(INetworkStatsService service) throws RemoteException {
+        synchronized (NetworkStatsRefresher.class) {
+            if (!isRefreshNeeded()) {
+                return false;
+            }
+            sLastRefresh = SystemClock.elapsedRealtime();
+        }
+        service.forceUpdate();
+        return true;
+    }
+
+    /**
+     * Return how long ago the stats were last refreshed in milliseconds, or -1 if they
+     * were never refreshed by this process.
+     */
+    public static synchronized long getLastRefreshAge() {
+        return sLastRefresh == 0 ? -1 : SystemClock.elapsedRealtime() - sLastRefresh;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.settings.net;
 
+import android.app.ActivityManager;
 import android.app.AppGlobals;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
@@ -33,8 +34,9 @@ import android.os.UserHandle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.LruCache;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -45,7 +47,10 @@ import com.android.settings.Utils;
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
+
+    // Fraction of the memory class of the process that cached details may use.
+    private static final int DETAILS_MEMORY_DIVIDER = 32;
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,24 +68,26 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        final ActivityManager am = (ActivityManager) mContext.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / DETAILS_MEMORY_DIVIDER;
+        mUidDetailCache = new LruCache<Integer, UidDetail>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer uid, UidDetail detail) {
+                return detail.icon != null ? AppIconCache.getByteCount(detail.icon) : 1;
+            }
+        };
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
-        }
+        mUidDetailCache.evictAll();
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
-        }
+        UidDetail detail = mUidDetailCache.get(uid);
 
         if (detail != null) {
             return detail;
@@ -89,10 +96,7 @@ public class UidDetailProvider {
         }
 
         detail = buildUidDetail(uid);
-
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
-        }
+        mUidDetailCache.put(uid, detail);
 
         return detail;
     }
@@ -104,6 +108,7 @@ public class UidDetailProvider {
     private UidDetail buildUidDetail(int uid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
+        final AppIconCache iconCache = AppIconCache.getInstance(mContext);
 
         final UidDetail detail = new UidDetail();
         detail.label = pm.getNameForUid(uid);
@@ -153,8 +158,8 @@ public class UidDetailProvider {
                 final ApplicationInfo info = ipm.getApplicationInfo(packageNames[0],
                         0 /* no flags */, userId);
                 if (info != null) {
-                    detail.label = info.loadLabel(pm).toString();
-                    detail.icon = um.getBadgedIconForUser(info.loadIcon(pm),
+                    detail.label = iconCache.loadLabel(info, pm).toString();
+                    detail.icon = um.getBadgedIconForUser(iconCache.loadIcon(info, pm),
                             new UserHandle(userId));
                 }
             } else if (length > 1) {
@@ -167,13 +172,14 @@ public class UidDetailProvider {
                             0 /* no flags */, userId);
 
                     if (appInfo != null) {
-                        detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
+                        detail.detailLabels[i] = iconCache.loadLabel(appInfo, pm).toString();
                         detail.detailContentDescriptions[i] = um.getBadgedLabelForUser(
                                 detail.detailLabels[i], userHandle);
                         if (packageInfo.sharedUserLabel != 0) {
                             detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                     packageInfo.applicationInfo).toString();
-                            detail.icon = um.getBadgedIconForUser(appInfo.loadIcon(pm), userHandle);
+                            detail.icon = um.getBadgedIconForUser(
+                                    iconCache.loadIcon(appInfo, pm), userHandle);
                         }
                     }
                 }
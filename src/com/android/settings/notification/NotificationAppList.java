@@ -57,6 +57,7 @@ import android.widget.SectionIndexer;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.PinnedHeaderListFragment;
 import com.android.settings.R;
 import com.android.settings.Settings.NotificationAppListActivity;
@@ -68,6 +69,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** Just a sectioned list of installed applications, nothing else to index **/
 public class NotificationAppList extends PinnedHeaderListFragment
@@ -82,10 +89,38 @@ public class NotificationAppList extends PinnedHeaderListFragment
             = new Intent(Intent.ACTION_MAIN)
                 .addCategory(Notification.INTENT_CATEGORY_NOTIFICATION_PREFERENCES);
 
+    /** Number of rows loaded between two updates of the list while loading. */
+    private static final int ROWS_PER_BATCH = 32;
+
+    /** Maximum number of apps whose notification state is read at the same time. */
+    private static final int MAX_PARALLEL_STATE_LOADS = 3;
+
+    private static final ThreadPoolExecutor sStateExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_STATE_LOADS, MAX_PARALLEL_STATE_LOADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sStateExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final int STATE_BANNED = 1 << 0;
+    private static final int STATE_PRIORITY = 1 << 1;
+    private static final int STATE_SENSITIVE = 1 << 2;
+
+    /**
+     * Last notification state read for each app, keyed by {@link #getStateKey}, so that the
+     * rows show it right away on the next visit while it is read again.
+     */
+    private static final ArrayMap<String, Integer> sStates = new ArrayMap<String, Integer>();
+
     private final Handler mHandler = new Handler();
-    private final ArrayMap<String, AppRow> mRows = new ArrayMap<String, AppRow>();
-    private final ArrayList<AppRow> mSortedRows = new ArrayList<AppRow>();
-    private final ArrayList<String> mSections = new ArrayList<String>();
+
+    // Rows and sections shown, only accessed on the main thread.
+    private ArrayList<AppRow> mSortedRows = new ArrayList<AppRow>();
+    private ArrayList<String> mSections = new ArrayList<String>();
+
+    // Incremented on each load, so that older loads stop publishing rows.
+    private volatile int mLoadGeneration;
 
     private Context mContext;
     private LayoutInflater mInflater;
@@ -180,10 +215,10 @@ public class NotificationAppList extends PinnedHeaderListFragment
     }
 
     private void loadAppsList() {
-        AsyncTask.execute(mCollectAppsRunnable);
+        AsyncTask.execute(new CollectAppsRunnable(++mLoadGeneration));
     }
 
-    private String getSection(CharSequence label) {
+    private static String getSection(CharSequence label) {
         if (label == null || label.length() == 0) return SECTION_BEFORE_A;
         final char c = Character.toUpperCase(label.charAt(0));
         if (c < 'A') return SECTION_BEFORE_A;
@@ -373,24 +408,93 @@ public class NotificationAppList extends PinnedHeaderListFragment
     };
 
 
-    public static AppRow loadAppRow(PackageManager pm, ApplicationInfo app,
+    public static AppRow loadAppRow(Context context, PackageManager pm, ApplicationInfo app,
             Backend backend) {
+        final AppRow row = newAppRow(context, pm, app);
+        final int state = loadState(row.pkg, row.uid, backend);
+        if (state >= 0) {
+            applyState(row, state);
+        }
+        return row;
+    }
+
+    private static AppRow newAppRow(Context context, PackageManager pm, ApplicationInfo app) {
         final AppRow row = new AppRow();
         row.pkg = app.packageName;
         row.uid = app.uid;
         try {
-            row.label = app.loadLabel(pm);
+            row.label = AppIconCache.getInstance(context).loadLabel(app, pm);
         } catch (Throwable t) {
             Log.e(TAG, "Error loading application label for " + row.pkg, t);
             row.label = row.pkg;
         }
-        row.icon = app.loadIcon(pm);
-        row.banned = backend.getNotificationsBanned(row.pkg, row.uid);
-        row.priority = backend.getHighPriority(row.pkg, row.uid);
-        row.sensitive = backend.getSensitive(row.pkg, row.uid);
+        row.icon = AppIconCache.getInstance(context).loadIcon(app, pm);
         return row;
     }
 
+    private static String getStateKey(String pkg, int uid) {
+        return pkg + ':' + uid;
+    }
+
+    /**
+     * Reads the notification state of an app from the backend, and caches it. Returns -1,
+     * and caches nothing, if it could not be read.
+     */
+    private static int loadState(String pkg, int uid, Backend backend) {
+        final int state = backend.getNotificationState(pkg, uid);
+        if (state < 0) {
+            return state;
+        }
+        synchronized (sStates) {
+            sStates.put(getStateKey(pkg, uid), state);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the cached notification state of an app, or null if it was never read.
+     */
+    private static Integer getCachedState(String pkg, int uid) {
+        synchronized (sStates) {
+            return sStates.get(getStateKey(pkg, uid));
+        }
+    }
+
+    /**
+     * Updates a flag of the cached notification state of an app, after it was changed.
+     */
+    private static void updateCachedState(String pkg, int uid, int flag, boolean value) {
+        synchronized (sStates) {
+            final String key = getStateKey(pkg, uid);
+            final Integer state = sStates.get(key);
+            if (state != null) {
+                sStates.put(key, value ? state | flag : state & ~flag);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the row, so that the rows shown are not changed by the loader.
+     */
+    private static AppRow copyRow(AppRow row) {
+        final AppRow copy = new AppRow();
+        copy.pkg = row.pkg;
+        copy.uid = row.uid;
+        copy.icon = row.icon;
+        copy.label = row.label;
+        copy.settingsIntent = row.settingsIntent;
+        copy.banned = row.banned;
+        copy.priority = row.priority;
+        copy.sensitive = row.sensitive;
+        return copy;
+    }
+
+    private static void applyState(AppRow row, int state) {
+        row.banned = (state & STATE_BANNED) != 0;
+        row.priority = (state & STATE_PRIORITY) != 0;
+        row.sensitive = (state & STATE_SENSITIVE) != 0;
+    }
+
     public static List<ResolveInfo> queryNotificationConfigActivities(PackageManager pm) {
         if (DEBUG) Log.d(TAG, "APP_NOTIFICATION_PREFS_CATEGORY_INTENT is "
                 + APP_NOTIFICATION_PREFS_CATEGORY_INTENT);
@@ -430,92 +534,166 @@ public class NotificationAppList extends PinnedHeaderListFragment
         }
     }
 
-    private final Runnable mCollectAppsRunnable = new Runnable() {
+    /**
+     * Loads the rows of the apps, and publishes them to the list sorted by batches of
+     * {@link #ROWS_PER_BATCH} while loading. Rows first show the cached notification state of
+     * their app, the state is read again in parallel and the rows updated once it is known.
+     */
+    private final class CollectAppsRunnable implements Runnable {
+        private final int mGeneration;
+
+        CollectAppsRunnable(int generation) {
+            mGeneration = generation;
+        }
+
         @Override
         public void run() {
-            synchronized (mRows) {
-                final long start = SystemClock.uptimeMillis();
-                if (DEBUG) Log.d(TAG, "Collecting apps...");
-                mRows.clear();
-                mSortedRows.clear();
-
-                // collect all launchable apps, plus any packages that have notification settings
-                final List<ApplicationInfo> appInfos = new ArrayList<ApplicationInfo>();
-
-                final List<LauncherActivityInfo> lais
-                        = mLauncherApps.getActivityList(null /* all */,
-                            UserHandle.getCallingUserHandle());
-                if (DEBUG) Log.d(TAG, "  launchable activities:");
-                for (LauncherActivityInfo lai : lais) {
-                    if (DEBUG) Log.d(TAG, "    " + lai.getComponentName().toString());
-                    appInfos.add(lai.getApplicationInfo());
-                }
+            final long start = SystemClock.uptimeMillis();
+            if (DEBUG) Log.d(TAG, "Collecting apps...");
+            final ArrayMap<String, AppRow> rows = new ArrayMap<String, AppRow>();
+
+            // collect all launchable apps, plus any packages that have notification settings
+            final List<ApplicationInfo> appInfos = new ArrayList<ApplicationInfo>();
+
+            final List<LauncherActivityInfo> lais
+                    = mLauncherApps.getActivityList(null /* all */,
+                        UserHandle.getCallingUserHandle());
+            if (DEBUG) Log.d(TAG, "  launchable activities:");
+            for (LauncherActivityInfo lai : lais) {
+                if (DEBUG) Log.d(TAG, "    " + lai.getComponentName().toString());
+                appInfos.add(lai.getApplicationInfo());
+            }
+
+            final List<ResolveInfo> resolvedConfigActivities
+                    = queryNotificationConfigActivities(mPM);
+            if (DEBUG) Log.d(TAG, "  config activities:");
+            for (ResolveInfo ri : resolvedConfigActivities) {
+                if (DEBUG) Log.d(TAG, "    "
+                        + ri.activityInfo.packageName + "/" + ri.activityInfo.name);
+                appInfos.add(ri.activityInfo.applicationInfo);
+            }
 
-                final List<ResolveInfo> resolvedConfigActivities
-                        = queryNotificationConfigActivities(mPM);
-                if (DEBUG) Log.d(TAG, "  config activities:");
-                for (ResolveInfo ri : resolvedConfigActivities) {
-                    if (DEBUG) Log.d(TAG, "    "
-                            + ri.activityInfo.packageName + "/" + ri.activityInfo.name);
-                    appInfos.add(ri.activityInfo.applicationInfo);
+            final Backend backend = mBackend;
+            final ArrayList<Future<Boolean>> stateLoads = new ArrayList<Future<Boolean>>();
+            for (ApplicationInfo info : appInfos) {
+                if (mGeneration != mLoadGeneration) {
+                    return;
+                }
+                final String key = info.packageName;
+                if (rows.containsKey(key)) {
+                    // we already have this app, thanks
+                    continue;
                 }
 
-                for (ApplicationInfo info : appInfos) {
-                    final String key = info.packageName;
-                    if (mRows.containsKey(key)) {
-                        // we already have this app, thanks
-                        continue;
+                final AppRow row = newAppRow(mContext, mPM, info);
+                final Integer cachedState = getCachedState(row.pkg, row.uid);
+                if (cachedState != null) {
+                    applyState(row, cachedState);
+                }
+                rows.put(key, row);
+                stateLoads.add(sStateExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        final int state = loadState(row.pkg, row.uid, backend);
+                        return state >= 0 && (cachedState == null || state != cachedState);
                     }
-
-                    final AppRow row = loadAppRow(mPM, info, mBackend);
-                    mRows.put(key, row);
+                }));
+                if (rows.size() % ROWS_PER_BATCH == 0) {
+                    publishRows(rows, false);
                 }
+            }
 
-                // add config activities to the list
-                applyConfigActivities(mPM, mRows, resolvedConfigActivities);
-
-                // sort rows
-                mSortedRows.addAll(mRows.values());
-                Collections.sort(mSortedRows, mRowComparator);
-                // compute sections
-                mSections.clear();
-                String section = null;
-                for (AppRow r : mSortedRows) {
-                    r.section = getSection(r.label);
-                    if (!r.section.equals(section)) {
-                        section = r.section;
-                        mSections.add(section);
+            // add config activities to the list
+            applyConfigActivities(mPM, rows, resolvedConfigActivities);
+            publishRows(rows, true);
+
+            // wait for the notification state of all apps
+            boolean changed = false;
+            for (Future<Boolean> stateLoad : stateLoads) {
+                try {
+                    changed |= stateLoad.get();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while loading notification state", e);
+                    return;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Error loading notification state", e);
+                }
+            }
+            if (changed) {
+                for (AppRow row : rows.values()) {
+                    final Integer state = getCachedState(row.pkg, row.uid);
+                    if (state != null) {
+                        applyState(row, state);
                     }
                 }
-                mHandler.post(mRefreshAppsListRunnable);
-                final long elapsed = SystemClock.uptimeMillis() - start;
-                if (DEBUG) Log.d(TAG, "Collected " + mRows.size() + " apps in " + elapsed + "ms");
+                publishRows(rows, true);
             }
+            final long elapsed = SystemClock.uptimeMillis() - start;
+            if (DEBUG) Log.d(TAG, "Collected " + rows.size() + " apps in " + elapsed + "ms");
         }
-    };
 
-    private void refreshDisplayedItems() {
-        if (DEBUG) Log.d(TAG, "Refreshing apps...");
-        mAdapter.clear();
-        synchronized (mSortedRows) {
+        /**
+         * Sorts copies of the rows loaded so far and shows them. The rows of the loader keep
+         * being updated, the copies are only touched by the main thread once posted.
+         */
+        private void publishRows(ArrayMap<String, AppRow> rows, final boolean complete) {
+            if (mGeneration != mLoadGeneration) {
+                return;
+            }
+            final ArrayList<AppRow> sortedRows = new ArrayList<AppRow>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                sortedRows.add(copyRow(rows.valueAt(i)));
+            }
+            // The collator is not thread-safe, and an older load may still be running.
+            synchronized (mRowComparator) {
+                Collections.sort(sortedRows, mRowComparator);
+            }
+            // compute sections
+            final ArrayList<String> sections = new ArrayList<String>();
             String section = null;
-            final int N = mSortedRows.size();
-            boolean first = true;
-            for (int i = 0; i < N; i++) {
-                final AppRow row = mSortedRows.get(i);
-                if (!row.section.equals(section)) {
-                    section = row.section;
-                    Row r = new Row();
-                    r.section = section;
-                    mAdapter.add(r);
-                    first = true;
+            for (AppRow r : sortedRows) {
+                r.section = getSection(r.label);
+                if (!r.section.equals(section)) {
+                    section = r.section;
+                    sections.add(section);
                 }
-                row.first = first;
-                mAdapter.add(row);
-                first = false;
             }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration != mLoadGeneration || getView() == null) {
+                        return;
+                    }
+                    mSortedRows = sortedRows;
+                    mSections = sections;
+                    refreshDisplayedItems(complete);
+                }
+            });
         }
-        if (mListViewState != null) {
+    }
+
+    private void refreshDisplayedItems(boolean complete) {
+        if (DEBUG) Log.d(TAG, "Refreshing apps...");
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        String section = null;
+        final int N = mSortedRows.size();
+        boolean first = true;
+        for (int i = 0; i < N; i++) {
+            final AppRow row = mSortedRows.get(i);
+            if (!row.section.equals(section)) {
+                section = row.section;
+                Row r = new Row();
+                r.section = section;
+                mAdapter.add(r);
+                first = true;
+            }
+            row.first = first;
+            mAdapter.add(row);
+            first = false;
+        }
+        mAdapter.notifyDataSetChanged();
+        if (complete && mListViewState != null) {
             if (DEBUG) Log.d(TAG, "Restoring listView state");
             getListView().onRestoreInstanceState(mListViewState);
             mListViewState = null;
@@ -523,13 +701,6 @@ public class NotificationAppList extends PinnedHeaderListFragment
         if (DEBUG) Log.d(TAG, "Refreshed " + mSortedRows.size() + " displayed items");
     }
 
-    private final Runnable mRefreshAppsListRunnable = new Runnable() {
-        @Override
-        public void run() {
-            refreshDisplayedItems();
-        }
-    };
-
     public static class Backend {
         static INotificationManager sINM = INotificationManager.Stub.asInterface(
                 ServiceManager.getService(Context.NOTIFICATION_SERVICE));
@@ -537,6 +708,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
         public boolean setNotificationsBanned(String pkg, int uid, boolean banned) {
             try {
                 sINM.setNotificationsEnabledForPackage(pkg, uid, !banned);
+                updateCachedState(pkg, uid, STATE_BANNED, banned);
                 return true;
             } catch (Exception e) {
                Log.w(TAG, "Error calling NoMan", e);
@@ -544,6 +716,30 @@ public class NotificationAppList extends PinnedHeaderListFragment
             }
         }
 
+        /**
+         * Returns the banned, priority and sensitive state of the app as a combination of the
+         * STATE_* flags, or -1 if it could not be read.
+         */
+        public int getNotificationState(String pkg, int uid) {
+            try {
+                int state = 0;
+                if (!sINM.areNotificationsEnabledForPackage(pkg, uid)) {
+                    state |= STATE_BANNED;
+                }
+                if (sINM.getPackagePriority(pkg, uid) == Notification.PRIORITY_MAX) {
+                    state |= STATE_PRIORITY;
+                }
+                if (sINM.getPackageVisibilityOverride(pkg, uid)
+                        == Notification.VISIBILITY_PRIVATE) {
+                    state |= STATE_SENSITIVE;
+                }
+                return state;
+            } catch (Exception e) {
+                Log.w(TAG, "Error calling NoMan", e);
+                return -1;
+            }
+        }
+
         public boolean getNotificationsBanned(String pkg, int uid) {
             try {
                 final boolean enabled = sINM.areNotificationsEnabledForPackage(pkg, uid);
@@ -567,6 +763,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
             try {
                 sINM.setPackagePriority(pkg, uid,
                         highPriority ? Notification.PRIORITY_MAX : Notification.PRIORITY_DEFAULT);
+                updateCachedState(pkg, uid, STATE_PRIORITY, highPriority);
                 return true;
             } catch (Exception e) {
                 Log.w(TAG, "Error calling NoMan", e);
@@ -588,6 +785,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
                 sINM.setPackageVisibilityOverride(pkg, uid,
                         sensitive ? Notification.VISIBILITY_PRIVATE
                                 : NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE);
+                updateCachedState(pkg, uid, STATE_SENSITIVE, sensitive);
                 return true;
             } catch (Exception e) {
                 Log.w(TAG, "Error calling NoMan", e);
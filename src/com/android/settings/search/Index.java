@@ -27,11 +27,15 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -46,15 +50,27 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -84,6 +100,8 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.FingerprintColumns;
+import static com.android.settings.search.IndexDatabaseHelper.TrigramColumns;
 
 public class Index {
 
@@ -140,6 +158,42 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
+    // The match columns that are not part of SELECT_COLUMNS, only selected for narrowing the
+    // cached search results
+    private static final String[] EXTRA_MATCH_COLUMNS = {
+            IndexColumns.DATA_TITLE_NORMALIZED,       // SELECT_COLUMNS.length
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,  // SELECT_COLUMNS.length + 1
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED  // SELECT_COLUMNS.length + 2
+    };
+
+    // Indices of MATCH_COLUMNS_PRIMARY and MATCH_COLUMNS_SECONDARY in a search results row
+    private static final int[] MATCH_COLUMNS_PRIMARY_INDICES = {
+            COLUMN_INDEX_TITLE,
+            SELECT_COLUMNS.length,
+            COLUMN_INDEX_KEYWORDS
+    };
+
+    private static final int[] MATCH_COLUMNS_SECONDARY_INDICES = {
+            COLUMN_INDEX_SUMMARY_ON,
+            SELECT_COLUMNS.length + 1,
+            COLUMN_INDEX_SUMMARY_OFF,
+            SELECT_COLUMNS.length + 2,
+            COLUMN_INDEX_ENTRIES
+    };
+
+    // Fuzzy search: only words of at least that length are looked up
+    private static final int MIN_FUZZY_WORD_LENGTH = 3;
+    // Fuzzy search: max number of query trigrams looked up
+    private static final int MAX_FUZZY_QUERY_TRIGRAMS = 32;
+    // Fuzzy search: max number of candidate rows scored
+    private static final int MAX_FUZZY_CANDIDATES = 64;
+    // Fuzzy search: max number of results
+    private static final int MAX_FUZZY_RESULTS = 16;
+    // Fuzzy search: min similarity score of a result
+    private static final float MIN_FUZZY_SCORE = 0.5f;
+    // Fuzzy search: max time spent per query
+    private static final long FUZZY_SEARCH_BUDGET_MILLIS = 40;
+
     // Max number of saved search queries (who will be used for proposing suggestions)
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
@@ -148,6 +202,9 @@ public class Index {
     private static final String BASE_AUTHORITY = "com.android.settings";
 
     private static final String EMPTY = "";
+    private static final String PACKAGE_SOURCE_KEY_PREFIX = "@";
+    private static final String DOC_IDS_SEPARATOR = ",";
+    private static final String FINGERPRINT_ALGORITHM = "SHA-1";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
     private static final String HYPHEN = "-";
 
@@ -160,8 +217,48 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    private static final String SEARCH_PRIMARY_SQL = buildSearchSQL(true);
+
+    // We need to use an EXCEPT operator as negate MATCH queries do not work.
+    private static final String SEARCH_SECONDARY_SQL =
+            buildSearchSQL(false) + " EXCEPT " + SEARCH_PRIMARY_SQL;
+
+    private static final String INSERT_TRIGRAM_SQL =
+            "INSERT INTO " + Tables.TABLE_TRIGRAMS + "(" +
+                    TrigramColumns.TRIGRAM + ", " +
+                    TrigramColumns.LOCALE + ", " +
+                    TrigramColumns.DOCID +
+                    ") VALUES (?, ?, ?)";
+
+    private static final String DELETE_TRIGRAMS_SQL =
+            "DELETE FROM " + Tables.TABLE_TRIGRAMS +
+                    " WHERE " + TrigramColumns.DOCID + " = ?";
+
+    private static final String DELETE_INDEX_ROW_SQL =
+            "DELETE FROM " + Tables.TABLE_PREFS_INDEX +
+                    " WHERE " + IndexColumns.DOCID + " = ? AND " + IndexColumns.LOCALE + " = ?";
+
+    private static final String SUGGESTIONS_RECENT_SQL =
+            "SELECT " + IndexDatabaseHelper.SavedQueriesColums.QUERY +
+                    " FROM " + Tables.TABLE_SAVED_QUERIES +
+                    " ORDER BY rowId DESC" +
+                    " LIMIT " + MAX_PROPOSED_SUGGESTIONS;
+
+    private static final String SUGGESTIONS_LIKE_SQL =
+            "SELECT " + IndexDatabaseHelper.SavedQueriesColums.QUERY +
+                    " FROM " + Tables.TABLE_SAVED_QUERIES +
+                    " WHERE " + IndexDatabaseHelper.SavedQueriesColums.QUERY +
+                    " LIKE ? ESCAPE '\\'" +
+                    " LIMIT " + MAX_PROPOSED_SUGGESTIONS;
+
     private static Index sInstance;
 
+    /** Maximum number of XML resources parsed at the same time while updating the Index. */
+    private static final int MAX_INDEX_WORKERS = 4;
+
+    // Shared by all the updates, created on the first one.
+    private static ThreadPoolExecutor sIndexExecutor;
+
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -174,6 +271,7 @@ public class Index {
         public Map<String, List<String>> nonIndexableKeys;
 
         public boolean forceUpdate = false;
+        public boolean fullUpdate = false;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
@@ -186,6 +284,7 @@ public class Index {
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
             forceUpdate = other.forceUpdate;
+            fullUpdate = other.fullUpdate;
         }
 
         public UpdateData copy() {
@@ -197,14 +296,116 @@ public class Index {
             dataToDelete.clear();
             nonIndexableKeys.clear();
             forceUpdate = false;
+            fullUpdate = false;
+        }
+    }
+
+    // If you change the order of columns here, you SHOULD change IndexRow.bindTo()
+    private static final String INSERT_INDEX_ROW_SQL =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX + "(" +
+                    IndexColumns.DOCID + ", " +
+                    IndexColumns.LOCALE + ", " +
+                    IndexColumns.DATA_RANK + ", " +
+                    IndexColumns.DATA_TITLE + ", " +
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_ON + ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+                    IndexColumns.DATA_ENTRIES + ", " +
+                    IndexColumns.DATA_KEYWORDS + ", " +
+                    IndexColumns.CLASS_NAME + ", " +
+                    IndexColumns.SCREEN_TITLE + ", " +
+                    IndexColumns.INTENT_ACTION + ", " +
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +
+                    IndexColumns.ICON + ", " +
+                    IndexColumns.ENABLED + ", " +
+                    IndexColumns.DATA_KEY_REF + ", " +
+                    IndexColumns.USER_ID +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * A private class describing one row of the Index. Rows are built by the indexing workers
+     * and written by the single thread owning the database transaction.
+     */
+    private static class IndexRow {
+        public int docId;
+        public String locale;
+        public int rank;
+        public String title;
+        public String titleNormalized;
+        public String summaryOn;
+        public String summaryOnNormalized;
+        public String summaryOff;
+        public String summaryOffNormalized;
+        public String entries;
+        public String keywords;
+        public String className;
+        public String screenTitle;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+        public int iconResId;
+        public boolean enabled;
+        public String key;
+        public int userId;
+
+        public void bindTo(SQLiteStatement statement) {
+            statement.clearBindings();
+            statement.bindLong(1, docId);
+            bindString(statement, 2, locale);
+            statement.bindLong(3, rank);
+            bindString(statement, 4, title);
+            bindString(statement, 5, titleNormalized);
+            bindString(statement, 6, summaryOn);
+            bindString(statement, 7, summaryOnNormalized);
+            bindString(statement, 8, summaryOff);
+            bindString(statement, 9, summaryOffNormalized);
+            bindString(statement, 10, entries);
+            bindString(statement, 11, keywords);
+            bindString(statement, 12, className);
+            bindString(statement, 13, screenTitle);
+            bindString(statement, 14, intentAction);
+            bindString(statement, 15, intentTargetPackage);
+            bindString(statement, 16, intentTargetClass);
+            statement.bindLong(17, iconResId);
+            statement.bindLong(18, enabled ? 1 : 0);
+            bindString(statement, 19, key);
+            statement.bindLong(20, userId);
+        }
+
+        private static void bindString(SQLiteStatement statement, int index, String value) {
+            if (value != null) {
+                statement.bindString(index, value);
+            } else {
+                statement.bindNull(index);
+            }
         }
     }
 
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    private final List<String> mPendingSavedQueries = new ArrayList<String>();
+    private boolean mIsSaveQueriesPending;
+    private final SearchResultsCache mSearchResultsCache = new SearchResultsCache(
+            MATCH_COLUMNS_PRIMARY_INDICES, MATCH_COLUMNS_SECONDARY_INDICES);
     private final UpdateData mDataToProcess = new UpdateData();
+    // Cancels the fuzzy searches running out of their time budget
+    private final Handler mFuzzySearchHandler = new Handler(Looper.getMainLooper());
     private Context mContext;
     private final String mBaseAuthority;
 
+    private static synchronized ThreadPoolExecutor getIndexExecutor() {
+        if (sIndexExecutor == null) {
+            final int workerCount = Math.max(1,
+                    Math.min(MAX_INDEX_WORKERS, Runtime.getRuntime().availableProcessors()));
+            sIndexExecutor = new ThreadPoolExecutor(workerCount, workerCount, 10,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            sIndexExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sIndexExecutor;
+    }
+
     /**
      * A basic singleton
      */
@@ -231,70 +432,270 @@ public class Index {
     }
 
     public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
+        return search(query, null);
+    }
+
+    /**
+     * Search the Index for the query.
+     *
+     * @param cancellationSignal a signal to cancel the query while it is in progress, or null.
+     *                           Throws {@link android.os.OperationCanceledException} when the
+     *                           query is canceled.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final String localeStr = Locale.getDefault().toString();
+
+        SearchResultsCache.Results results = mSearchResultsCache.get(localeStr, query);
+        if (results == null) {
+            final SQLiteDatabase database = getReadableDatabase();
+
+            final String primaryMatch = buildSearchMatchStringForColumns(query,
+                    MATCH_COLUMNS_PRIMARY);
+            final String secondaryMatch = buildSearchMatchStringForColumns(query,
+                    MATCH_COLUMNS_SECONDARY);
+
+            final List<SearchResultsCache.Row> primary = readSearchResultsRows(
+                    database.rawQuery(SEARCH_PRIMARY_SQL,
+                            new String[] { primaryMatch, localeStr }, cancellationSignal));
+            final List<SearchResultsCache.Row> secondary = readSearchResultsRows(
+                    database.rawQuery(SEARCH_SECONDARY_SQL,
+                            new String[] { secondaryMatch, localeStr, primaryMatch, localeStr },
+                            cancellationSignal));
+
+            results = new SearchResultsCache.Results(primary, secondary);
+        }
+        if (results.isEmpty() && !results.fuzzy) {
+            results = fuzzySearch(getReadableDatabase(), localeStr, query, cancellationSignal);
+        }
+        mSearchResultsCache.put(localeStr, query, results);
+        return results.toCursor(SELECT_COLUMNS);
+    }
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+    /**
+     * A private class for sorting the fuzzy search results
+     */
+    private static class ScoredRow {
+        public final SearchResultsCache.Row row;
+        public final float score;
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+        public ScoredRow(SearchResultsCache.Row row, float score) {
+            this.row = row;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<ScoredRow> SCORED_ROW_COMPARATOR =
+            new Comparator<ScoredRow>() {
+        @Override
+        public int compare(ScoredRow lhs, ScoredRow rhs) {
+            final int result = Float.compare(rhs.score, lhs.score);
+            if (result != 0) {
+                return result;
+            }
+            // Same score: use the Ranking of the rows
+            return (lhs.row.rank < rhs.row.rank) ? -1 : ((lhs.row.rank == rhs.row.rank) ? 0 : 1);
+        }
+    };
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+    /**
+     * Look for the rows whose title or keywords have words close to the query words, using the
+     * trigrams index. This is only used when the prefix search has no results (typically because
+     * of a typo). The queries are canceled, and no results returned, once they take more than
+     * FUZZY_SEARCH_BUDGET_MILLIS.
+     */
+    private SearchResultsCache.Results fuzzySearch(SQLiteDatabase database, String localeStr,
+            String query, final CancellationSignal cancellationSignal) {
+        final List<SearchResultsCache.Row> empty = Collections.emptyList();
+
+        final List<Set<String>> queryWords = new ArrayList<Set<String>>();
+        final Set<String> queryTrigrams = new HashSet<String>();
+        for (String word : Trigrams.getWords(normalizeString(query))) {
+            if (word.length() < MIN_FUZZY_WORD_LENGTH) {
+                continue;
+            }
+            final Set<String> trigrams = new HashSet<String>();
+            Trigrams.addTrigrams(word, trigrams);
+            queryWords.add(trigrams);
+            queryTrigrams.addAll(trigrams);
+        }
+        if (queryTrigrams.isEmpty()) {
+            return new SearchResultsCache.Results(empty, empty, true);
+        }
 
-        return new MergeCursor(cursors);
+        // The budget signal is canceled by the caller signal or once the budget is spent
+        final CancellationSignal budgetSignal = new CancellationSignal();
+        final Runnable budgetExpired = new Runnable() {
+            @Override
+            public void run() {
+                budgetSignal.cancel();
+            }
+        };
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    budgetSignal.cancel();
+                }
+            });
+        }
+        mFuzzySearchHandler.postDelayed(budgetExpired, FUZZY_SEARCH_BUDGET_MILLIS);
+        try {
+            return new SearchResultsCache.Results(
+                    queryFuzzyRows(database, localeStr, queryWords, queryTrigrams, budgetSignal),
+                    empty, true);
+        } catch (OperationCanceledException e) {
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                throw e;
+            }
+            return new SearchResultsCache.Results(empty, empty, true);
+        } finally {
+            mFuzzySearchHandler.removeCallbacks(budgetExpired);
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+        }
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+    private List<SearchResultsCache.Row> queryFuzzyRows(SQLiteDatabase database,
+            String localeStr, List<Set<String>> queryWords, Set<String> queryTrigrams,
+            CancellationSignal cancellationSignal) {
+        final List<SearchResultsCache.Row> results = new ArrayList<SearchResultsCache.Row>();
+
+        // First, get the candidates sharing enough trigrams with the query
+        final int trigramCount = Math.min(queryTrigrams.size(), MAX_FUZZY_QUERY_TRIGRAMS);
+        final String[] candidatesArgs = new String[trigramCount + 1];
+        candidatesArgs[0] = localeStr;
+        int n = 1;
+        for (String trigram : queryTrigrams) {
+            if (n > trigramCount) {
+                break;
+            }
+            candidatesArgs[n++] = trigram;
+        }
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        sb.append(TrigramColumns.DOCID);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_TRIGRAMS);
+        sb.append(" WHERE ");
+        sb.append(TrigramColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(TrigramColumns.TRIGRAM);
+        sb.append(" IN (");
+        appendPlaceholders(sb, trigramCount);
+        sb.append(") GROUP BY ");
+        sb.append(TrigramColumns.DOCID);
+        sb.append(" HAVING COUNT(*) >= ");
+        sb.append(Math.max(1, trigramCount / 3));
+        sb.append(" ORDER BY COUNT(*) DESC LIMIT ");
+        sb.append(MAX_FUZZY_CANDIDATES);
+
+        final List<String> docIds = new ArrayList<String>();
+        final Cursor candidates = database.rawQuery(sb.toString(), candidatesArgs,
+                cancellationSignal);
+        try {
+            while (candidates.moveToNext()) {
+                docIds.add(candidates.getString(0));
+            }
+        } finally {
+            candidates.close();
+        }
+        if (docIds.isEmpty()) {
+            return results;
+        }
+
+        // Then, score the candidates words against the query words
+        sb.setLength(0);
+        sb.append(buildSearchSelectString());
+        sb.append(" WHERE ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" IN (");
+        appendPlaceholders(sb, docIds.size());
+        sb.append(") AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        final List<SearchResultsCache.Row> rows = readSearchResultsRows(
+                database.rawQuery(sb.toString(), docIds.toArray(new String[docIds.size()]),
+                        cancellationSignal));
+
+        final List<ScoredRow> scoredRows = new ArrayList<ScoredRow>();
+        final int count = rows.size();
+        for (n = 0; n < count; n++) {
+            cancellationSignal.throwIfCanceled();
+            final SearchResultsCache.Row row = rows.get(n);
+            final List<String> words = Trigrams.getWords(row.values[SELECT_COLUMNS.length]);
+            words.addAll(Trigrams.getWords(normalizeString(row.values[COLUMN_INDEX_KEYWORDS])));
+            final float score = Trigrams.score(queryWords, words);
+            if (score >= MIN_FUZZY_SCORE) {
+                scoredRows.add(new ScoredRow(row, score));
+            }
+        }
+        Collections.sort(scoredRows, SCORED_ROW_COMPARATOR);
+
+        final int resultCount = Math.min(scoredRows.size(), MAX_FUZZY_RESULTS);
+        for (n = 0; n < resultCount; n++) {
+            results.add(scoredRows.get(n).row);
+        }
+        return results;
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    private static void appendPlaceholders(StringBuilder sb, int count) {
+        for (int n = 0; n < count; n++) {
+            sb.append((n == 0) ? "?" : ", ?");
+        }
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    private static List<SearchResultsCache.Row> readSearchResultsRows(Cursor cursor) {
+        final List<SearchResultsCache.Row> rows = new ArrayList<SearchResultsCache.Row>();
+        try {
+            final int columnCount = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                final String[] values = new String[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    values[n] = cursor.getString(n);
+                }
+                rows.add(new SearchResultsCache.Row(values, cursor.getInt(COLUMN_INDEX_RANK)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
 
+    public Cursor getSuggestions(String query) {
+        final SQLiteDatabase database = getReadableDatabase();
         if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+            return database.rawQuery(SUGGESTIONS_RECENT_SQL, null);
         }
+        return database.rawQuery(SUGGESTIONS_LIKE_SQL,
+                new String[] { escapeLikePattern(query) + "%" });
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
-
+    private static String escapeLikePattern(String value) {
+        final StringBuilder sb = new StringBuilder(value.length());
+        final int length = value.length();
+        for (int n = 0; n < length; n++) {
+            final char c = value.charAt(n);
+            if (c == '%' || c == '_' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
         return sb.toString();
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+    /**
+     * Save the query asynchronously. Queries saved while a previous save is pending are
+     * written together in one transaction.
+     */
+    public void addSavedQuery(String query) {
+        synchronized (mPendingSavedQueries) {
+            mPendingSavedQueries.add(query);
+            if (mIsSaveQueriesPending) {
+                return;
+            }
+            mIsSaveQueriesPending = true;
         }
+        new SaveSearchQueryTask().execute();
     }
 
     public void update() {
@@ -315,6 +716,11 @@ public class Index {
             addNonIndexablesKeysFromRemoteProvider(packageName, authority);
         }
 
+        // All the well known providers have been queried, so any indexed class that has not
+        // been reported this time is obsolete
+        synchronized (mDataToProcess) {
+            mDataToProcess.fullUpdate = true;
+        }
         updateInternal();
     }
 
@@ -637,9 +1043,9 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
+    private static String buildSearchSQL(boolean withOrderBy) {
         StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
+        sb.append(buildSearchSQLForColumn());
         if (withOrderBy) {
             sb.append(" ORDER BY ");
             sb.append(IndexColumns.DATA_RANK);
@@ -647,39 +1053,51 @@ public class Index {
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
+    private static String buildSearchSQLForColumn() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(buildSearchSelectString());
+        sb.append(" WHERE ");
+        sb.append(buildSearchWhereString());
+
+        return sb.toString();
+    }
+
+    private static String buildSearchSelectString() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
             sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
+            sb.append(", ");
+        }
+        for (int n = 0; n < EXTRA_MATCH_COLUMNS.length; n++) {
+            sb.append(EXTRA_MATCH_COLUMNS[n]);
+            if (n < EXTRA_MATCH_COLUMNS.length - 1) {
                 sb.append(", ");
             }
         }
         sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
-        sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
 
         return sb.toString();
     }
 
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
+    /**
+     * The MATCH expression and the locale are bound as arguments so that the SQL is always the
+     * same and its compiled statement can be reused from one query to the next.
+     */
+    private static String buildSearchWhereString() {
         final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
+        sb.append(" MATCH ?");
         sb.append(" AND ");
         sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
+        sb.append(" = ?");
         sb.append(" AND ");
         sb.append(IndexColumns.ENABLED);
         sb.append(" = 1");
         return sb.toString();
     }
 
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
+    private static String buildSearchMatchStringForColumns(String query, String[] columnNames) {
         final String value = query + "*";
         StringBuilder sb = new StringBuilder();
         final int count = columnNames.length;
@@ -694,23 +1112,31 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    /**
+     * Returns the callable building the rows of one data. The search index provider of the
+     * data, if any, is called right away on the calling thread, and only the XML resources are
+     * left to be parsed by the callable.
+     */
+    private IndexDataCallable newIndexDataCallable(String localeStr, SearchIndexableData data,
+            Map<String, List<String>> nonIndexableKeys) {
+        final IndexDataCallable callable = new IndexDataCallable(localeStr, data.className);
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(callable, localeStr, (SearchIndexableResource) data,
+                    nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(callable.mRows, localeStr, (SearchIndexableRaw) data);
         }
+        return callable;
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<IndexRow> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,7 +1169,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(IndexDataCallable callable, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -751,7 +1177,7 @@ public class Index {
             return;
         }
 
-        final List<String> nonIndexableKeys = new ArrayList<String>();
+        final List<String> nonIndexableKeys = callable.mNonIndexableKeys;
 
         if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
             List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
@@ -759,10 +1185,9 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            callable.addResource(sir.context,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
-                    sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
@@ -785,7 +1210,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, callable, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -811,7 +1236,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<IndexRow> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -851,7 +1276,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1308,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1320,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,7 +1336,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, IndexDataCallable callable, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -936,7 +1361,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(callable.mRows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -972,15 +1397,15 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                callable.addResource(context,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
-                        item.intentTargetClass, nonIndexableKeys);
+                        item.intentTargetClass);
             }
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexRow> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -995,7 +1420,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1014,7 +1439,7 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexRow> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1032,29 +1457,29 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        final IndexRow row = new IndexRow();
+        row.docId = docId;
+        row.locale = locale;
+        row.rank = rank;
+        row.title = updatedTitle;
+        row.titleNormalized = normalizedTitle;
+        row.summaryOn = updatedSummaryOn;
+        row.summaryOnNormalized = normalizedSummaryOn;
+        row.summaryOff = updatedSummaryOff;
+        row.summaryOffNormalized = normalizedSummaryOff;
+        row.entries = entries;
+        row.keywords = keywords;
+        row.className = className;
+        row.screenTitle = screenTitle;
+        row.intentAction = intentAction;
+        row.intentTargetPackage = intentTargetPackage;
+        row.intentTargetClass = intentTargetClass;
+        row.iconResId = iconResId;
+        row.enabled = enabled;
+        row.key = key;
+        row.userId = userId;
+
+        rows.add(row);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1145,6 +1570,74 @@ public class Index {
         }
    }
 
+    /**
+     * A private class describing one XML resource to parse for the Index
+     */
+    private static class XmlResource {
+        public Context context;
+        public int xmlResId;
+        public String className;
+        public int iconResId;
+        public int rank;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+    }
+
+    /**
+     * A private class for building the Index rows of one data, off the writer thread. The rows
+     * of the raw data are already built, and the XML resources are parsed by {@link #call}.
+     */
+    private class IndexDataCallable implements Callable<List<IndexRow>> {
+        private final String mLocaleStr;
+        private final String mName;
+        private final List<IndexRow> mRows = new ArrayList<IndexRow>();
+        private final List<XmlResource> mResources = new ArrayList<XmlResource>();
+        private final List<String> mNonIndexableKeys = new ArrayList<String>();
+
+        public IndexDataCallable(String localeStr, String name) {
+            mLocaleStr = localeStr;
+            mName = name;
+        }
+
+        public void addResource(Context context, int xmlResId, String className, int iconResId,
+                int rank, String intentAction, String intentTargetPackage,
+                String intentTargetClass) {
+            final XmlResource resource = new XmlResource();
+            resource.context = context;
+            resource.xmlResId = xmlResId;
+            resource.className = className;
+            resource.iconResId = iconResId;
+            resource.rank = rank;
+            resource.intentAction = intentAction;
+            resource.intentTargetPackage = intentTargetPackage;
+            resource.intentTargetClass = intentTargetClass;
+            mResources.add(resource);
+        }
+
+        /**
+         * Return the rows of the data, or null if they could not be built.
+         */
+        @Override
+        public List<IndexRow> call() {
+            final List<IndexRow> rows = new ArrayList<IndexRow>(mRows);
+            try {
+                final int count = mResources.size();
+                for (int n = 0; n < count; n++) {
+                    final XmlResource res = mResources.get(n);
+                    indexFromResource(res.context, rows, mLocaleStr,
+                            res.xmlResId, res.className, res.iconResId, res.rank,
+                            res.intentAction, res.intentTargetPackage, res.intentTargetClass,
+                            mNonIndexableKeys);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Cannot index: " + mName + " for locale: " + mLocaleStr, e);
+                return null;
+            }
+            return rows;
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1169,6 +1662,7 @@ public class Index {
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
 
             final boolean forceUpdate = params[0].forceUpdate;
+            final boolean fullUpdate = params[0].fullUpdate;
 
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
@@ -1180,11 +1674,12 @@ public class Index {
                 }
                 if (dataToUpdate.size() > 0) {
                     processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                            forceUpdate, fullUpdate);
                 }
                 database.setTransactionSuccessful();
             } finally {
                 database.endTransaction();
+                mSearchResultsCache.clear();
             }
 
             return null;
@@ -1192,55 +1687,250 @@ public class Index {
 
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+                boolean forceUpdate, boolean fullUpdate) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
-            final int count = dataToUpdate.size();
-            for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+            // Only the sources whose inputs have changed since they were indexed for the locale
+            // are indexed again
+            final Map<String, String[]> storedFingerprints = getFingerprints(database, localeStr);
+            final Map<String, String> fingerprints =
+                    computeFingerprints(dataToUpdate, nonIndexableKeys);
+            final Set<String> changed = new HashSet<String>();
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                final String[] stored = storedFingerprints.get(entry.getKey());
+                if (forceUpdate || stored == null || !entry.getValue().equals(stored[0])) {
+                    changed.add(entry.getKey());
                 }
             }
 
-            final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+            // Two sources may build a row with the same doc id: keep the rows that are still
+            // owned by an unchanged source
+            final Set<Integer> keptDocIds = new HashSet<Integer>();
+            for (Map.Entry<String, String[]> entry : storedFingerprints.entrySet()) {
+                final String sourceKey = entry.getKey();
+                if (fingerprints.containsKey(sourceKey) && !changed.contains(sourceKey)) {
+                    addDocIds(keptDocIds, entry.getValue()[1]);
+                }
+            }
+
+            final SQLiteStatement deleteRow = database.compileStatement(DELETE_INDEX_ROW_SQL);
+            final SQLiteStatement deleteTrigrams = database.compileStatement(DELETE_TRIGRAMS_SQL);
+            try {
+                if (fullUpdate) {
+                    // All the sources have been reported, so the ones left are obsolete
+                    for (Map.Entry<String, String[]> entry : storedFingerprints.entrySet()) {
+                        final String sourceKey = entry.getKey();
+                        if (fingerprints.containsKey(sourceKey)) {
+                            continue;
+                        }
+                        deleteRows(deleteRow, deleteTrigrams, entry.getValue()[1], localeStr,
+                                keptDocIds);
+                        database.delete(Tables.TABLE_FINGERPRINTS,
+                                FingerprintColumns.CLASS_NAME + " = ? AND " +
+                                        FingerprintColumns.LOCALE + " = ?",
+                                new String[] { sourceKey, localeStr });
+                    }
+                }
+
+                if (changed.isEmpty()) {
+                    Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
+                    return true;
+                }
+
+                final List<SearchIndexableData> changedData = new ArrayList<SearchIndexableData>();
+                for (SearchIndexableData data : dataToUpdate) {
+                    if (changed.contains(getSourceKey(data))) {
+                        changedData.add(data);
+                    }
+                }
+                final List<List<IndexRow>> dataRows =
+                        buildIndexRows(localeStr, changedData, nonIndexableKeys);
+
+                // A source is only written when the rows of all its data could be built, so
+                // that a source failing to index keeps its previous rows
+                final Map<String, List<Integer>> docIds = new HashMap<String, List<Integer>>();
+                final Set<String> failed = new HashSet<String>();
+                final int count = changedData.size();
+                for (int n = 0; n < count; n++) {
+                    final String sourceKey = getSourceKey(changedData.get(n));
+                    final List<IndexRow> rows = dataRows.get(n);
+                    if (rows == null) {
+                        failed.add(sourceKey);
+                        continue;
+                    }
+                    List<Integer> ids = docIds.get(sourceKey);
+                    if (ids == null) {
+                        ids = new ArrayList<Integer>();
+                        docIds.put(sourceKey, ids);
+                    }
+                    for (IndexRow row : rows) {
+                        ids.add(row.docId);
+                    }
+                }
+                changed.removeAll(failed);
+
+                for (String sourceKey : changed) {
+                    final String[] stored = storedFingerprints.get(sourceKey);
+                    if (stored != null) {
+                        deleteRows(deleteRow, deleteTrigrams, stored[1], localeStr, keptDocIds);
+                    }
+                    putFingerprint(database, sourceKey, localeStr, fingerprints.get(sourceKey),
+                            TextUtils.join(DOC_IDS_SEPARATOR, docIds.get(sourceKey)));
+                }
+
+                final int rowCount = insertRows(database, changedData, dataRows, changed,
+                        deleteTrigrams);
+
+                final long now = System.currentTimeMillis();
+                Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' re-indexed " +
+                        changed.size() + " changed source(s) out of " + fingerprints.size() +
+                        ", wrote " + rowCount + " rows and took " + (now - current) + " millis");
+            } finally {
+                deleteRow.close();
+                deleteTrigrams.close();
+            }
             return result;
         }
 
+        /**
+         * Build the rows of each data, in the same order. The rows of a data that could not be
+         * built are null.
+         */
+        private List<List<IndexRow>> buildIndexRows(String localeStr,
+                List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys) {
+            final int count = dataToUpdate.size();
+            final ThreadPoolExecutor executor = getIndexExecutor();
+            final List<List<IndexRow>> dataRows = new ArrayList<List<IndexRow>>(count);
+            final List<Future<List<IndexRow>>> futures =
+                    new ArrayList<Future<List<IndexRow>>>(count);
+            try {
+                // The search index providers are called here one after the other, while the
+                // workers parse the XML resources in parallel. The rows are kept in submission
+                // order so that the last indexed data still wins as before
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToUpdate.get(n);
+                    try {
+                        futures.add(executor.submit(
+                                newIndexDataCallable(localeStr, data, nonIndexableKeys)));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Cannot index: " + data.className + " for locale: " +
+                                localeStr, e);
+                        futures.add(null);
+                    }
+                }
+                for (int n = 0; n < count; n++) {
+                    dataRows.add(getIndexRows(futures.get(n)));
+                }
+            } finally {
+                for (Future<List<IndexRow>> future : futures) {
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }
+            return dataRows;
+        }
+
+        private int insertRows(SQLiteDatabase database, List<SearchIndexableData> dataToUpdate,
+                List<List<IndexRow>> dataRows, Set<String> sourceKeys,
+                SQLiteStatement deleteTrigrams) {
+            final SQLiteStatement insert = database.compileStatement(INSERT_INDEX_ROW_SQL);
+            final SQLiteStatement insertTrigram = database.compileStatement(INSERT_TRIGRAM_SQL);
+            final Set<String> trigrams = new HashSet<String>();
+            int rowCount = 0;
+            try {
+                final int count = dataToUpdate.size();
+                for (int n = 0; n < count; n++) {
+                    final List<IndexRow> rows = dataRows.get(n);
+                    if (rows == null || !sourceKeys.contains(getSourceKey(dataToUpdate.get(n)))) {
+                        continue;
+                    }
+                    final int size = rows.size();
+                    for (int i = 0; i < size; i++) {
+                        final IndexRow row = rows.get(i);
+                        row.bindTo(insert);
+                        insert.executeInsert();
+                        indexTrigrams(deleteTrigrams, insertTrigram, row, trigrams);
+                    }
+                    rowCount += size;
+                }
+            } finally {
+                insert.close();
+                insertTrigram.close();
+            }
+            return rowCount;
+        }
+
+        /**
+         * Replace the trigrams of the row title and keywords, used by the fuzzy search.
+         */
+        private void indexTrigrams(SQLiteStatement deleteTrigrams, SQLiteStatement insertTrigram,
+                IndexRow row, Set<String> trigrams) {
+            deleteTrigrams.bindLong(1, row.docId);
+            deleteTrigrams.executeUpdateDelete();
+
+            trigrams.clear();
+            Trigrams.addTextTrigrams(row.titleNormalized, trigrams);
+            Trigrams.addTextTrigrams(normalizeString(row.keywords), trigrams);
+            for (String trigram : trigrams) {
+                insertTrigram.bindString(1, trigram);
+                insertTrigram.bindString(2, row.locale);
+                insertTrigram.bindLong(3, row.docId);
+                insertTrigram.executeInsert();
+            }
+        }
+
+        private List<IndexRow> getIndexRows(Future<List<IndexRow>> future) {
+            if (future == null) {
+                return null;
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Interrupted while waiting for indexed rows", e);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot get indexed rows", e);
+            }
+            return null;
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
-            final int count = dataToDelete.size();
-            for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToDelete.get(n);
-                if (data == null) {
-                    continue;
-                }
-                if (!TextUtils.isEmpty(data.className)) {
-                    delete(database, IndexColumns.CLASS_NAME, data.className);
-                } else  {
-                    if (data instanceof SearchIndexableRaw) {
-                        final SearchIndexableRaw raw = (SearchIndexableRaw) data;
-                        if (!TextUtils.isEmpty(raw.title)) {
-                            delete(database, IndexColumns.DATA_TITLE, raw.title);
+            final SQLiteStatement deleteTrigrams = database.compileStatement(DELETE_TRIGRAMS_SQL);
+            try {
+                final int count = dataToDelete.size();
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToDelete.get(n);
+                    if (data == null) {
+                        continue;
+                    }
+                    // Forget the fingerprint of the source so that a later update indexes the
+                    // rows that are left out here again
+                    database.delete(Tables.TABLE_FINGERPRINTS,
+                            FingerprintColumns.CLASS_NAME + " = ?",
+                            new String[] { getSourceKey(data) });
+                    if (!TextUtils.isEmpty(data.className)) {
+                        delete(database, deleteTrigrams, IndexColumns.CLASS_NAME, data.className);
+                    } else  {
+                        if (data instanceof SearchIndexableRaw) {
+                            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                            if (!TextUtils.isEmpty(raw.title)) {
+                                delete(database, deleteTrigrams, IndexColumns.DATA_TITLE,
+                                        raw.title);
+                            }
                         }
                     }
                 }
+            } finally {
+                deleteTrigrams.close();
             }
 
             final long now = System.currentTimeMillis();
@@ -1249,25 +1939,182 @@ public class Index {
             return result;
         }
 
-        private int delete(SQLiteDatabase database, String columName, String value) {
+        private int delete(SQLiteDatabase database, SQLiteStatement deleteTrigrams,
+                String columName, String value) {
             final String whereClause = columName + "=?";
             final String[] whereArgs = new String[] { value };
 
+            // Remove the trigrams of the rows about to be deleted
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_PREFS_INDEX,
+                        new String[] { IndexColumns.DOCID }, whereClause, whereArgs,
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    deleteTrigrams.bindLong(1, cursor.getLong(0));
+                    deleteTrigrams.executeUpdateDelete();
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        /**
+         * Compute the fingerprint of the inputs of each source (the indexed class, or the
+         * package for the data without a class name): the build, the version of the owning
+         * package, the indexable descriptors and the non indexable keys. The rows of a source
+         * are only built again when its fingerprint changes.
+         */
+        private Map<String, String> computeFingerprints(List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys) {
+            final Map<String, StringBuilder> inputs = new LinkedHashMap<String, StringBuilder>();
+            final Map<String, String> packageStamps = new HashMap<String, String>();
+
+            final int count = dataToUpdate.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = dataToUpdate.get(n);
+                final String sourceKey = getSourceKey(data);
+                StringBuilder sb = inputs.get(sourceKey);
+                if (sb == null) {
+                    sb = new StringBuilder(Build.VERSION.INCREMENTAL);
+                    inputs.put(sourceKey, sb);
+                }
+                final String packageName = (data.packageName != null) ?
+                        data.packageName : mContext.getPackageName();
+                sb.append('|').append(getPackageStamp(packageName, packageStamps));
+                appendInput(sb, data);
+                final List<String> keys = nonIndexableKeys.get(data.packageName);
+                if (keys != null) {
+                    sb.append('|').append(keys);
+                }
+            }
+
+            final MessageDigest digest = getDigest();
+            final Map<String, String> result = new HashMap<String, String>(inputs.size());
+            for (Map.Entry<String, StringBuilder> entry : inputs.entrySet()) {
+                final byte[] hash = digest.digest(
+                        entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                result.put(entry.getKey(), toHexString(hash));
+            }
+            return result;
+        }
+
+        private void appendInput(StringBuilder sb, SearchIndexableData data) {
+            sb.append('|').append(data.locale);
+            sb.append('|').append(data.rank);
+            sb.append('|').append(data.className);
+            sb.append('|').append(data.iconResId);
+            sb.append('|').append(data.intentAction);
+            sb.append('|').append(data.intentTargetPackage);
+            sb.append('|').append(data.intentTargetClass);
+            sb.append('|').append(data.enabled);
+            sb.append('|').append(data.key);
+            sb.append('|').append(data.userId);
+            if (data instanceof SearchIndexableResource) {
+                final SearchIndexableResource sir = (SearchIndexableResource) data;
+                sb.append('|').append(sir.xmlResId);
+                if (sir.xmlResId <= SearchIndexableResources.NO_DATA_RES_ID &&
+                        !TextUtils.isEmpty(sir.className)) {
+                    // The keys a local provider hides depend on the device state
+                    final Class<?> clazz = getIndexableClass(sir.className);
+                    final Indexable.SearchIndexProvider provider =
+                            (clazz != null) ? getSearchIndexProvider(clazz) : null;
+                    if (provider != null) {
+                        sb.append('|').append(provider.getNonIndexableKeys(sir.context));
+                    }
+                }
+            } else if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                sb.append('|').append(raw.title);
+                sb.append('|').append(raw.summaryOn);
+                sb.append('|').append(raw.summaryOff);
+                sb.append('|').append(raw.entries);
+                sb.append('|').append(raw.keywords);
+                sb.append('|').append(raw.screenTitle);
+            }
+        }
+
+        private String getPackageStamp(String packageName, Map<String, String> packageStamps) {
+            String stamp = packageStamps.get(packageName);
+            if (stamp == null) {
+                try {
+                    final PackageInfo info =
+                            mContext.getPackageManager().getPackageInfo(packageName, 0);
+                    stamp = info.versionCode + "/" + info.lastUpdateTime;
+                } catch (PackageManager.NameNotFoundException e) {
+                    stamp = EMPTY;
+                }
+                packageStamps.put(packageName, stamp);
+            }
+            return stamp;
+        }
+
+        private MessageDigest getDigest() {
+            try {
+                return MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Cannot fingerprint the Index data", e);
+            }
+        }
+
+        private String toHexString(byte[] bytes) {
+            final StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+
+        private void addDocIds(Set<Integer> result, String docIds) {
+            if (TextUtils.isEmpty(docIds)) {
+                return;
+            }
+            for (String docId : docIds.split(DOC_IDS_SEPARATOR)) {
+                result.add(Integer.parseInt(docId));
+            }
+        }
+
+        /**
+         * Delete the rows with the given doc ids for the locale, along with their trigrams.
+         */
+        private void deleteRows(SQLiteStatement deleteRow, SQLiteStatement deleteTrigrams,
+                String docIds, String locale, Set<Integer> keptDocIds) {
+            if (TextUtils.isEmpty(docIds)) {
+                return;
+            }
+            for (String docId : docIds.split(DOC_IDS_SEPARATOR)) {
+                final int id = Integer.parseInt(docId);
+                if (keptDocIds.contains(id)) {
+                    continue;
+                }
+                deleteRow.bindLong(1, id);
+                deleteRow.bindString(2, locale);
+                if (deleteRow.executeUpdateDelete() > 0) {
+                    deleteTrigrams.bindLong(1, id);
+                    deleteTrigrams.executeUpdateDelete();
+                }
+            }
+        }
+
+        private Map<String, String[]> getFingerprints(SQLiteDatabase database, String locale) {
+            final Map<String, String[]> result = new HashMap<String, String[]>();
             Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                cursor = database.query(Tables.TABLE_FINGERPRINTS,
+                        new String[] {
+                                FingerprintColumns.CLASS_NAME, FingerprintColumns.FINGERPRINT,
+                                FingerprintColumns.DOC_IDS },
+                        FingerprintColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0),
+                            new String[] { cursor.getString(1), cursor.getString(2) });
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
@@ -1275,43 +2122,78 @@ public class Index {
             }
             return result;
         }
+
+        private void putFingerprint(SQLiteDatabase database, String sourceKey, String locale,
+                String fingerprint, String docIds) {
+            final ContentValues values = new ContentValues();
+            values.put(FingerprintColumns.CLASS_NAME, sourceKey);
+            values.put(FingerprintColumns.LOCALE, locale);
+            values.put(FingerprintColumns.FINGERPRINT, fingerprint);
+            values.put(FingerprintColumns.DOC_IDS, docIds);
+            database.replaceOrThrow(Tables.TABLE_FINGERPRINTS, null, values);
+        }
     }
 
     /**
-     * A basic AsyncTask for saving a Search query into the database
+     * Data without a class name cannot be deleted by class, so it is fingerprinted by package.
      */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
+    private static String getSourceKey(SearchIndexableData data) {
+        if (!TextUtils.isEmpty(data.className)) {
+            return data.className;
+        }
+        return PACKAGE_SOURCE_KEY_PREFIX + data.packageName;
+    }
 
-        @Override
-        protected Long doInBackground(String... params) {
-            final long now = new Date().getTime();
+    /**
+     * A basic AsyncTask for saving the pending Search queries into the database
+     */
+    private class SaveSearchQueryTask extends AsyncTask<Void, Void, Long> {
 
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
+        @Override
+        protected Long doInBackground(Void... params) {
+            final List<String> queries;
+            synchronized (mPendingSavedQueries) {
+                queries = new ArrayList<String>(mPendingSavedQueries);
+                mPendingSavedQueries.clear();
+                mIsSaveQueriesPending = false;
+            }
 
+            final long now = new Date().getTime();
             final SQLiteDatabase database = getWritableDatabase();
 
             long lastInsertedRowId = -1;
             try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
-
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+                database.beginTransaction();
+                final int count = queries.size();
+                for (int n = 0; n < count; n++) {
+                    final String query = queries.get(n);
+
+                    final ContentValues values = new ContentValues();
+                    values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, query);
+                    values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
+
+                    // First, delete all saved queries that are the same
+                    database.delete(Tables.TABLE_SAVED_QUERIES,
+                            IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
+                            new String[] { query });
+
+                    // Second, insert the saved query
+                    lastInsertedRowId =
+                            database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+                }
 
                 // Last, remove "old" saved queries
                 final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
                 if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
-                            new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
+                    final int deleted = database.delete(Tables.TABLE_SAVED_QUERIES,
+                            "rowId <= ?", new String[] { Long.toString(delta) });
+                    Log.d(LOG_TAG, "Deleted '" + deleted + "' saved Search query(ies)");
                 }
+                database.setTransactionSuccessful();
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+            } finally {
+                database.endTransaction();
             }
 
             return lastInsertedRowId;
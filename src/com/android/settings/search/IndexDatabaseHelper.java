@@ -28,12 +28,14 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 118;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_FINGERPRINTS = "index_fingerprints";
+        public static final String TABLE_TRIGRAMS = "prefs_index_trigrams";
     }
 
     public interface IndexColumns {
@@ -68,6 +70,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
+    public interface TrigramColumns {
+        public static final String TRIGRAM = "trigram";
+        public static final String LOCALE = "locale";
+        public static final String DOCID = "docid";
+    }
+
+    public interface FingerprintColumns {
+        public static final String CLASS_NAME = "class_name";
+        public static final String LOCALE = "locale";
+        public static final String FINGERPRINT = "fingerprint";
+        public static final String DOC_IDS = "doc_ids";
+    }
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
@@ -124,10 +139,53 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_TRIGRAMS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_TRIGRAMS +
+                    "(" +
+                    TrigramColumns.TRIGRAM + " TEXT NOT NULL" +
+                    ", " +
+                    TrigramColumns.LOCALE + " TEXT NOT NULL" +
+                    ", " +
+                    TrigramColumns.DOCID + " INTEGER NOT NULL" +
+                    ")";
+
+    private static final String CREATE_TRIGRAMS_INDEX =
+            "CREATE INDEX " + Tables.TABLE_TRIGRAMS + "_trigram ON " + Tables.TABLE_TRIGRAMS +
+                    "(" +
+                    TrigramColumns.LOCALE +
+                    ", " +
+                    TrigramColumns.TRIGRAM +
+                    ")";
+
+    private static final String CREATE_TRIGRAMS_DOCID_INDEX =
+            "CREATE INDEX " + Tables.TABLE_TRIGRAMS + "_docid ON " + Tables.TABLE_TRIGRAMS +
+                    "(" +
+                    TrigramColumns.DOCID +
+                    ")";
+
+    private static final String CREATE_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_FINGERPRINTS +
+                    "(" +
+                    FingerprintColumns.CLASS_NAME + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintColumns.LOCALE + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintColumns.DOC_IDS + " TEXT" +
+                    ", " +
+                    "UNIQUE (" + FingerprintColumns.CLASS_NAME + ", " +
+                    FingerprintColumns.LOCALE + ") ON CONFLICT REPLACE" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String UPDATE_BUILD_VERSION =
+            "UPDATE " + Tables.TABLE_META_INDEX +
+                    " SET " + MetaColumns.BUILD + " = '" + Build.VERSION.INCREMENTAL + "';";
+
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
@@ -153,6 +211,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_FINGERPRINTS_TABLE);
+        db.execSQL(CREATE_TRIGRAMS_TABLE);
+        db.execSQL(CREATE_TRIGRAMS_INDEX);
+        db.execSQL(CREATE_TRIGRAMS_DOCID_INDEX);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +226,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            // No need to drop the tables: the Index keeps a fingerprint per indexed class and
+            // will only re-index the classes whose fingerprint has changed with the new build
+            Log.w(TAG, "Build-version is not the same, Index will be incrementally updated");
+            db.execSQL(UPDATE_BUILD_VERSION);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -219,5 +282,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_FINGERPRINTS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_TRIGRAMS);
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A small LRU of the recent search results of the Index, keyed by locale and query.
+ *
+ * When the user keeps on typing ("wif" then "wifi"), the results of the new query are a subset
+ * of the results of a cached prefix query, so they are computed by filtering the cached rows the
+ * same way the FTS4 "simple" tokenizer prefix-matches them instead of querying the database.
+ */
+class SearchResultsCache {
+
+    private static final int MAX_ENTRIES = 16;
+
+    /**
+     * One row of search results: the values of the exposed columns followed by the values of
+     * the match columns that are not exposed.
+     */
+    static class Row {
+        public final String[] values;
+        public final int rank;
+
+        public Row(String[] values, int rank) {
+            this.values = values;
+            this.rank = rank;
+        }
+    }
+
+    /**
+     * The results of a search query, split into rows matching on the primary columns and rows
+     * only matching on the secondary columns. Fuzzy results are only made of primary rows.
+     */
+    static class Results {
+        public final List<Row> primary;
+        public final List<Row> secondary;
+        public final boolean fuzzy;
+
+        public Results(List<Row> primary, List<Row> secondary) {
+            this(primary, secondary, false);
+        }
+
+        public Results(List<Row> primary, List<Row> secondary, boolean fuzzy) {
+            this.primary = primary;
+            this.secondary = secondary;
+            this.fuzzy = fuzzy;
+        }
+
+        public boolean isEmpty() {
+            return primary.isEmpty() && secondary.isEmpty();
+        }
+
+        public Cursor toCursor(String[] columnNames) {
+            final MatrixCursor cursor =
+                    new MatrixCursor(columnNames, primary.size() + secondary.size());
+            addRows(cursor, primary, columnNames.length);
+            addRows(cursor, secondary, columnNames.length);
+            return cursor;
+        }
+
+        private static void addRows(MatrixCursor cursor, List<Row> rows, int columnCount) {
+            final int count = rows.size();
+            for (int n = 0; n < count; n++) {
+                final String[] values = rows.get(n).values;
+                final Object[] columnValues = new Object[columnCount];
+                System.arraycopy(values, 0, columnValues, 0, columnCount);
+                cursor.addRow(columnValues);
+            }
+        }
+    }
+
+    private static final Comparator<Row> RANK_COMPARATOR = new Comparator<Row>() {
+        @Override
+        public int compare(Row lhs, Row rhs) {
+            return (lhs.rank < rhs.rank) ? -1 : ((lhs.rank == rhs.rank) ? 0 : 1);
+        }
+    };
+
+    private final LruCache<String, Results> mCache = new LruCache<String, Results>(MAX_ENTRIES);
+
+    private final int[] mPrimaryMatchColumns;
+    private final int[] mSecondaryMatchColumns;
+
+    /**
+     * @param primaryMatchColumns the indices in {@link Row#values} of the primary match columns
+     * @param secondaryMatchColumns the indices in {@link Row#values} of the secondary match
+     *                              columns
+     */
+    public SearchResultsCache(int[] primaryMatchColumns, int[] secondaryMatchColumns) {
+        mPrimaryMatchColumns = primaryMatchColumns;
+        mSecondaryMatchColumns = secondaryMatchColumns;
+    }
+
+    /**
+     * Return the cached results for the query, or narrow the results of the longest cached
+     * prefix of the query. Return null if the results need to be queried.
+     */
+    public Results get(String locale, String query) {
+        final String normalizedQuery = normalizeQuery(query);
+        Results results = mCache.get(getKey(locale, normalizedQuery));
+        if (results != null || !isSingleToken(normalizedQuery)) {
+            return results;
+        }
+        for (int length = normalizedQuery.length() - 1; length > 0; length--) {
+            final Results prefixResults =
+                    mCache.get(getKey(locale, normalizedQuery.substring(0, length)));
+            // Fuzzy results are not prefix matches, so they cannot be narrowed
+            if (prefixResults != null && !prefixResults.fuzzy) {
+                results = narrow(prefixResults, normalizedQuery);
+                mCache.put(getKey(locale, normalizedQuery), results);
+                return results;
+            }
+        }
+        return null;
+    }
+
+    public void put(String locale, String query, Results results) {
+        mCache.put(getKey(locale, normalizeQuery(query)), results);
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    private Results narrow(Results results, String token) {
+        final ArrayList<Row> primary = new ArrayList<Row>();
+        final ArrayList<Row> secondary = new ArrayList<Row>();
+
+        // A row matching the longer token on its primary columns was a primary row before
+        final int primaryCount = results.primary.size();
+        for (int n = 0; n < primaryCount; n++) {
+            final Row row = results.primary.get(n);
+            if (matches(row, mPrimaryMatchColumns, token)) {
+                primary.add(row);
+            } else if (matches(row, mSecondaryMatchColumns, token)) {
+                secondary.add(row);
+            }
+        }
+        final int secondaryCount = results.secondary.size();
+        for (int n = 0; n < secondaryCount; n++) {
+            final Row row = results.secondary.get(n);
+            if (matches(row, mSecondaryMatchColumns, token)) {
+                secondary.add(row);
+            }
+        }
+        // Secondary results are ordered by rank as the EXCEPT query is
+        Collections.sort(secondary, RANK_COMPARATOR);
+
+        return new Results(primary, secondary);
+    }
+
+    private static boolean matches(Row row, int[] columns, String token) {
+        for (int column : columns) {
+            if (hasTokenWithPrefix(row.values[column], token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mimic the FTS4 "simple" tokenizer: tokens are made of ASCII alphanumeric characters and
+     * non ASCII characters, and only ASCII characters are folded to lower case.
+     */
+    private static boolean hasTokenWithPrefix(String value, String prefix) {
+        if (value == null) {
+            return false;
+        }
+        final int length = value.length();
+        final int prefixLength = prefix.length();
+        int n = 0;
+        while (n < length) {
+            while (n < length && !isTokenChar(value.charAt(n))) {
+                n++;
+            }
+            int matched = 0;
+            while (n < length && isTokenChar(value.charAt(n))) {
+                if (matched >= 0 && matched < prefixLength) {
+                    matched = (foldCase(value.charAt(n)) == prefix.charAt(matched)) ?
+                            matched + 1 : -1;
+                }
+                n++;
+            }
+            if (matched == prefixLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char foldCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean isSingleToken(String query) {
+        final int length = query.length();
+        if (length == 0) {
+            return false;
+        }
+        for (int n = 0; n < length; n++) {
+            if (!isTokenChar(query.charAt(n))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FTS4 matching is case insensitive for ASCII characters only, so is the cache key.
+     */
+    private static String normalizeQuery(String query) {
+        if (query == null) {
+            return "";
+        }
+        final int length = query.length();
+        final StringBuilder sb = new StringBuilder(length);
+        for (int n = 0; n < length; n++) {
+            sb.append(foldCase(query.charAt(n)));
+        }
+        return sb.toString();
+    }
+
+    private static String getKey(String locale, String normalizedQuery) {
+        return locale + ':' + normalizedQuery;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Utility class for the trigrams used by the fuzzy search of the Index.
+ *
+ * Each word is padded with a boundary character, so that "wifi" gives "$wi", "wif", "ifi" and
+ * "fi$". Words are expected to be already normalized (lower case, no diacritics).
+ */
+final class Trigrams {
+
+    private static final char BOUNDARY = '$';
+
+    private Trigrams() {
+    }
+
+    /**
+     * Split the text into words made of letters and digits.
+     */
+    public static List<String> getWords(String text) {
+        final List<String> words = new ArrayList<String>();
+        if (text == null) {
+            return words;
+        }
+        final int length = text.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isWordChar = (n < length) && Character.isLetterOrDigit(text.charAt(n));
+            if (isWordChar && start < 0) {
+                start = n;
+            } else if (!isWordChar && start >= 0) {
+                words.add(text.substring(start, n));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Add the trigrams of a word to the given set.
+     */
+    public static void addTrigrams(String word, Set<String> out) {
+        final String padded = BOUNDARY + word + BOUNDARY;
+        final int count = padded.length() - 2;
+        for (int n = 0; n < count; n++) {
+            out.add(padded.substring(n, n + 3));
+        }
+    }
+
+    /**
+     * Add the trigrams of every word of the text to the given set.
+     */
+    public static void addTextTrigrams(String text, Set<String> out) {
+        final List<String> words = getWords(text);
+        final int count = words.size();
+        for (int n = 0; n < count; n++) {
+            addTrigrams(words.get(n), out);
+        }
+    }
+
+    /**
+     * Return the Dice coefficient of the trigrams of two words, between 0 (nothing in common)
+     * and 1 (same trigrams).
+     */
+    public static float similarity(Set<String> lhs, Set<String> rhs) {
+        final int total = lhs.size() + rhs.size();
+        if (total == 0) {
+            return 0;
+        }
+        int common = 0;
+        for (String trigram : lhs) {
+            if (rhs.contains(trigram)) {
+                common++;
+            }
+        }
+        return (2.0f * common) / total;
+    }
+
+    /**
+     * Return the average, over the query words, of the best similarity with one of the words.
+     */
+    public static float score(List<Set<String>> queryWords, List<String> words) {
+        final int queryCount = queryWords.size();
+        if (queryCount == 0) {
+            return 0;
+        }
+        final List<Set<String>> wordsTrigrams = new ArrayList<Set<String>>(words.size());
+        for (int n = 0; n < words.size(); n++) {
+            final Set<String> trigrams = new HashSet<String>();
+            addTrigrams(words.get(n), trigrams);
+            wordsTrigrams.add(trigrams);
+        }
+        float sum = 0;
+        for (int n = 0; n < queryCount; n++) {
+            float best = 0;
+            for (int i = 0; i < wordsTrigrams.size(); i++) {
+                best = Math.max(best, similarity(queryWords.get(n), wordsTrigrams.get(i)));
+            }
+            sum += best;
+        }
+        return sum / queryCount;
+    }
+}
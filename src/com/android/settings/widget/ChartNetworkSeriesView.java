@@ -56,6 +56,14 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
+    /** Start of each bucket of {@link #mStats}. */
+    private long[] mBucketStart;
+    /** Total data of the buckets before each index, with one extra for all of them. */
+    private long[] mCumulative;
+    private long mBucketDuration;
+    /** Index after the last bucket of each segment of the path, see computeSegments(). */
+    private int[] mSegmentEnds = new int[0];
+
     private Path mPathStroke;
     private Path mPathFill;
     private Path mPathEstimate;
@@ -143,25 +151,111 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        buildCumulative();
+        mMax = 0;
         invalidatePath();
         invalidate();
     }
 
+    /**
+     * Index the bound stats so that the data between any two buckets is known without
+     * going through the buckets in between.
+     */
+    private void buildCumulative() {
+        final int size = mStats != null ? mStats.size() : 0;
+        mBucketStart = new long[size];
+        mCumulative = new long[size + 1];
+        mBucketDuration = mStats != null ? mStats.getBucketDuration() : 0;
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            mBucketStart[i] = entry.bucketStart;
+            mCumulative[i + 1] = mCumulative[i] + entry.rxBytes + entry.txBytes;
+        }
+    }
+
     public void setBounds(long start, long end) {
-        mStart = start;
-        mEnd = end;
+        if (mStart != start || mEnd != end) {
+            mStart = start;
+            mEnd = end;
+            mMax = 0;
+        }
     }
 
     public void setSecondary(boolean secondary) {
         mSecondary = secondary;
     }
 
+    /**
+     * Regenerate the paths on next draw. The visible total only depends on the bounds and
+     * the bound stats, so it is kept until either changes.
+     */
     public void invalidatePath() {
         mPathValid = false;
-        mMax = 0;
         invalidate();
     }
 
+    /**
+     * Return the index of the first bucket between from and to that ends after the given
+     * point, or to if they all end before.
+     */
+    private int findFirstBucketEndingAfter(float point, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mHoriz.convertToPoint(mBucketStart[mid] + mBucketDuration) <= point) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Split the buckets from first to end into the segments of the path, and keep the index
+     * after the last bucket of each segment. When there are more buckets than pixels, a
+     * segment covers all the buckets ending in the same pixel column; the series is
+     * cumulative, so its last bucket holds the highest value of the column. Otherwise each
+     * bucket is a segment.
+     *
+     * @return the number of segments, see {@link #getSegmentEnd(int)}.
+     */
+    int computeSegments(int first, int end, int width) {
+        final boolean decimate = end - first + 1 > width;
+        int count = 0;
+        int x = 0;
+        int i = first;
+        while (i <= end) {
+            final int next;
+            if (decimate && x < width) {
+                x++;
+                next = findFirstBucketEndingAfter(x, i, end + 1);
+                if (next == i) continue;
+            } else {
+                next = i + 1;
+            }
+
+            if (count == mSegmentEnds.length) {
+                final int[] segmentEnds = new int[Math.max(16, count * 2)];
+                System.arraycopy(mSegmentEnds, 0, segmentEnds, 0, count);
+                mSegmentEnds = segmentEnds;
+            }
+            mSegmentEnds[count++] = next;
+            i = next;
+        }
+        return count;
+    }
+
+    /**
+     * Return the index after the last bucket of the given segment of the path.
+     */
+    int getSegmentEnd(int segment) {
+        return mSegmentEnds[segment];
+    }
+
     /**
      * Erase any existing {@link Path} and generate series outline based on
      * currently bound {@link NetworkStatsHistory} data.
@@ -183,7 +277,6 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
         float lastX = 0;
         float lastY = height;
         long lastTime = mHoriz.convertToValue(lastX);
@@ -195,29 +288,31 @@ public class ChartNetworkSeriesView extends View {
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
 
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
         final int start = mStats.getIndexBefore(mStart);
         final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
 
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
+        // skip until we find first stats on screen
+        int first = start;
+        while (first <= end
+                && mHoriz.convertToPoint(mBucketStart[first] + mBucketDuration) < 0) {
+            first++;
+        }
+        final long baseData = mCumulative[first];
 
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
+        final int segmentCount = computeSegments(first, end, width);
+        int i = first;
+        for (int n = 0; n < segmentCount; n++) {
+            // buckets from i to next (exclusive) are drawn as one segment
+            final int next = mSegmentEnds[n];
 
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
+            final long startTime = mBucketStart[i];
+            final long endTime = mBucketStart[next - 1] + mBucketDuration;
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
 
             final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
+            final float endY = mVert.convertToPoint(mCumulative[next] - baseData);
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
@@ -232,8 +327,11 @@ public class ChartNetworkSeriesView extends View {
             lastX = endX;
             lastY = endY;
             lastTime = endTime;
+            i = next;
         }
 
+        long totalData = mCumulative[i] - baseData;
+
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
@@ -259,6 +357,8 @@ public class ChartNetworkSeriesView extends View {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
+            NetworkStatsHistory.Entry entry = null;
+
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
 
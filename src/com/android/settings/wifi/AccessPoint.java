@@ -133,7 +133,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -220,6 +220,75 @@ class AccessPoint extends Preference {
         update(mInfo, mNetworkInfo);
     }
 
+    /**
+     * Reload this access point from a configured network, as if it was created from it.
+     * Used to keep the preference already shown when the list of access points is updated.
+     */
+    void reset(WifiConfiguration config) {
+        final int oldSecurity = security;
+        clearNetworkState();
+        loadConfig(config);
+        resetIcon(oldSecurity);
+        refresh();
+    }
+
+    /**
+     * Reload this access point from a scan result, as if it was created from it.
+     */
+    void reset(ScanResult result) {
+        final int oldSecurity = security;
+        clearNetworkState();
+        loadResult(result);
+        resetIcon(oldSecurity);
+        refresh();
+    }
+
+    // The connection info is kept, update(WifiInfo, NetworkInfo) tells whether it still applies.
+    private void clearNetworkState() {
+        bssid = null;
+        networkId = WifiConfiguration.INVALID_NETWORK_ID;
+        wpsAvailable = false;
+        pskType = PskType.UNKNOWN;
+        mConfig = null;
+        mScanResult = null;
+        mScanResultCache = null;
+        mRssi = Integer.MAX_VALUE;
+        mSeen = 0;
+    }
+
+    private void resetIcon(int oldSecurity) {
+        // The drawable is picked for the security once, in updateIcon().
+        if (security != oldSecurity) {
+            setIcon(null);
+        }
+    }
+
+    /**
+     * Return the key identifying this access point across scans: the network id of a
+     * configured network, or the SSID and security of a network seen in scan results.
+     */
+    String getMatchKey() {
+        if (networkId != WifiConfiguration.INVALID_NETWORK_ID) {
+            return getMatchKey(networkId);
+        }
+        return getMatchKey(ssid, security);
+    }
+
+    static String getMatchKey(int networkId) {
+        return "#" + networkId;
+    }
+
+    static String getMatchKey(String ssid, int security) {
+        return ssid + ',' + security;
+    }
+
+    /**
+     * Ask the list showing this access point to sort it again, after its signal changed.
+     */
+    void notifyRankChanged() {
+        notifyHierarchyChanged();
+    }
+
     public void saveWifiState(Bundle savedState) {
         savedState.putParcelable(KEY_CONFIG, mConfig);
         savedState.putParcelable(KEY_SCANRESULT, mScanResult);
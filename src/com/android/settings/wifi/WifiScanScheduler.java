@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks the wifi module to scan periodically while wifi networks are shown.
+ *
+ * Scans are issued every MIN_SCAN_INTERVAL_MS at first. The interval doubles, up to
+ * MAX_SCAN_INTERVAL_MS, each time a scan finds the same networks at the same signal levels
+ * as the previous one, and goes back to MIN_SCAN_INTERVAL_MS when networks appear, disappear
+ * or their signal jumps, or when the user interacts with the list. A scan that fails to start
+ * is retried after MIN_SCAN_INTERVAL_MS whatever the current interval.
+ *
+ * The scans issued and the scans whose results changed are counted per screen session, from
+ * {@link #startSession} to {@link #endSession}.
+ */
+class WifiScanScheduler extends Handler {
+    private static final String TAG = "WifiScanScheduler";
+
+    // Combo scans can take 5-6s to complete - set to 10s.
+    static final int MIN_SCAN_INTERVAL_MS = 10 * 1000;
+    static final int MAX_SCAN_INTERVAL_MS = 80 * 1000;
+
+    // Change of signal in dBm considered volatile.
+    private static final int VOLATILE_RSSI_DELTA = 10;
+    private static final int SIGNAL_LEVELS = 4;
+
+    private static final int MSG_SCAN = 0;
+
+    interface Callback {
+        /** Called when the wifi module failed to start several scans in a row. */
+        void onScanFailed();
+    }
+
+    private final WifiManager mWifiManager;
+    private final Callback mCallback;
+
+    private int mRetry = 0;
+    private int mInterval = MIN_SCAN_INTERVAL_MS;
+    // Time of the last scan issued in uptime, 0 if there was none.
+    private long mLastScan;
+
+    // Counters for the current screen session.
+    private long mSessionStart;
+    private int mScansIssued;
+    private int mScansChanged;
+
+    // Signal of the networks found by the last scan, by BSSID.
+    private HashMap<String, Integer> mLastResults;
+
+    WifiScanScheduler(WifiManager wifiManager, Callback callback) {
+        mWifiManager = wifiManager;
+        mCallback = callback;
+    }
+
+    void resume() {
+        if (!hasMessages(MSG_SCAN)) {
+            sendEmptyMessage(MSG_SCAN);
+        }
+    }
+
+    void forceScan() {
+        mInterval = MIN_SCAN_INTERVAL_MS;
+        removeMessages(MSG_SCAN);
+        sendEmptyMessage(MSG_SCAN);
+    }
+
+    void pause() {
+        mRetry = 0;
+        removeMessages(MSG_SCAN);
+    }
+
+    /**
+     * Called when the screen showing the networks is resumed, to count its scans from now.
+     */
+    void startSession() {
+        mSessionStart = SystemClock.uptimeMillis();
+        mScansIssued = 0;
+        mScansChanged = 0;
+    }
+
+    /**
+     * Called when the screen showing the networks is paused, to report its scans against the
+     * ones a scan every MIN_SCAN_INTERVAL_MS would have issued.
+     */
+    void endSession() {
+        pause();
+        final long duration = SystemClock.uptimeMillis() - mSessionStart;
+        Log.d(TAG, "Scans issued: " + mScansIssued + " (" + (duration / MIN_SCAN_INTERVAL_MS + 1)
+                + " at a fixed interval), with changed results: " + mScansChanged + " in "
+                + duration + " millis");
+    }
+
+    /**
+     * Called when the user interacts with the list of networks, to scan again soon.
+     */
+    void onUserInteraction() {
+        if (mInterval == MIN_SCAN_INTERVAL_MS || !hasMessages(MSG_SCAN)) {
+            mInterval = MIN_SCAN_INTERVAL_MS;
+            return;
+        }
+        mInterval = MIN_SCAN_INTERVAL_MS;
+        removeMessages(MSG_SCAN);
+        sendEmptyMessageAtTime(MSG_SCAN, mLastScan + MIN_SCAN_INTERVAL_MS);
+    }
+
+    /**
+     * Called with the results of a scan, to adapt the interval to how much they changed.
+     */
+    void onScanResults(List<ScanResult> results) {
+        final HashMap<String, Integer> current = new HashMap<String, Integer>();
+        if (results != null) {
+            for (ScanResult result : results) {
+                current.put(result.BSSID, result.level);
+            }
+        }
+        final HashMap<String, Integer> last = mLastResults;
+        mLastResults = current;
+        if (last == null) {
+            return;
+        }
+
+        boolean changed = last.size() != current.size();
+        boolean jumped = changed;
+        for (Map.Entry<String, Integer> entry : current.entrySet()) {
+            final Integer lastRssi = last.get(entry.getKey());
+            if (lastRssi == null) {
+                changed = jumped = true;
+                break;
+            }
+            final int rssi = entry.getValue();
+            if (Math.abs(rssi - lastRssi) >= VOLATILE_RSSI_DELTA) {
+                changed = jumped = true;
+                break;
+            }
+            if (WifiManager.calculateSignalLevel(rssi, SIGNAL_LEVELS)
+                    != WifiManager.calculateSignalLevel(lastRssi, SIGNAL_LEVELS)) {
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            mScansChanged++;
+        }
+        if (jumped) {
+            onUserInteraction();
+        } else if (!changed) {
+            mInterval = Math.min(mInterval * 2, MAX_SCAN_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Return the number of scans issued in the current screen session.
+     */
+    int getScansIssued() {
+        return mScansIssued;
+    }
+
+    /**
+     * Return the number of scans of the current screen session whose results changed from
+     * the previous ones.
+     */
+    int getScansChanged() {
+        return mScansChanged;
+    }
+
+    @Override
+    public void handleMessage(Message message) {
+        if (mWifiManager.startScan()) {
+            mRetry = 0;
+            mLastScan = SystemClock.uptimeMillis();
+            mScansIssued++;
+        } else if (++mRetry >= 3) {
+            mRetry = 0;
+            mCallback.onScanFailed();
+            return;
+        } else {
+            // Don't let the backoff delay the retries
+            sendEmptyMessageDelayed(MSG_SCAN, MIN_SCAN_INTERVAL_MS);
+            return;
+        }
+        sendEmptyMessageDelayed(MSG_SCAN, mInterval);
+    }
+}
@@ -41,8 +41,6 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WpsInfo;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.os.UserHandle;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
@@ -53,6 +51,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -68,7 +67,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -100,9 +102,6 @@ public class WifiSettings extends RestrictedSettingsFragment
     private static final int WPS_PIN_DIALOG_ID = 3;
     private static final int WRITE_NFC_DIALOG_ID = 6;
 
-    // Combo scans can take 5-6s to complete - set to 10s.
-    private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
-
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
     private static final String SAVE_DIALOG_ACCESS_POINT_STATE = "wifi_ap_state";
@@ -111,7 +110,7 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     private final IntentFilter mFilter;
     private final BroadcastReceiver mReceiver;
-    private final Scanner mScanner;
+    private WifiScanScheduler mScanner;
 
     /* package */ WifiManager mWifiManager;
     private WifiManager.ActionListener mConnectListener;
@@ -153,6 +152,11 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     /* End of "used in Wifi Setup context" */
 
+    /** Ways to update the access points shown, see getShownUpdate() */
+    static final int SHOWN_ADD = 0;
+    static final int SHOWN_RESORT = 1;
+    static final int SHOWN_REBUILD = 2;
+
     /** A restricted multimap for use in constructAccessPoints */
     private static class Multimap<K,V> {
         private final HashMap<K,List<V>> store = new HashMap<K,List<V>>();
@@ -172,46 +176,6 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
-    private static class Scanner extends Handler {
-        private int mRetry = 0;
-        private WifiSettings mWifiSettings = null;
-
-        Scanner(WifiSettings wifiSettings) {
-            mWifiSettings = wifiSettings;
-        }
-
-        void resume() {
-            if (!hasMessages(0)) {
-                sendEmptyMessage(0);
-            }
-        }
-
-        void forceScan() {
-            removeMessages(0);
-            sendEmptyMessage(0);
-        }
-
-        void pause() {
-            mRetry = 0;
-            removeMessages(0);
-        }
-
-        @Override
-        public void handleMessage(Message message) {
-            if (mWifiSettings.mWifiManager.startScan()) {
-                mRetry = 0;
-            } else if (++mRetry >= 3) {
-                mRetry = 0;
-                Activity activity = mWifiSettings.getActivity();
-                if (activity != null) {
-                    Toast.makeText(activity, R.string.wifi_fail_to_scan, Toast.LENGTH_LONG).show();
-                }
-                return;
-            }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
-        }
-    }
-
     public WifiSettings() {
         super(DISALLOW_CONFIG_WIFI);
         mFilter = new IntentFilter();
@@ -230,8 +194,6 @@ public class WifiSettings extends RestrictedSettingsFragment
                 handleEvent(intent);
             }
         };
-
-        mScanner = new Scanner(this);
     }
 
     @Override
@@ -239,6 +201,15 @@ public class WifiSettings extends RestrictedSettingsFragment
         super.onActivityCreated(savedInstanceState);
 
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        mScanner = new WifiScanScheduler(mWifiManager, new WifiScanScheduler.Callback() {
+            @Override
+            public void onScanFailed() {
+                Activity activity = getActivity();
+                if (activity != null) {
+                    Toast.makeText(activity, R.string.wifi_fail_to_scan, Toast.LENGTH_LONG).show();
+                }
+            }
+        });
 
         mConnectListener = new WifiManager.ActionListener() {
                                    @Override
@@ -314,6 +285,19 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         mEmptyView = initEmptyView();
         registerForContextMenu(getListView());
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
+                    mScanner.onUserInteraction();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+            }
+        });
         setHasOptionsMenu(true);
 
         if (intent.hasExtra(EXTRA_START_CONNECT_SSID)) {
@@ -368,6 +352,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         activity.registerReceiver(mReceiver, mFilter);
+        mScanner.startSession();
         updateAccessPoints();
     }
 
@@ -379,7 +364,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         getActivity().unregisterReceiver(mReceiver);
-        mScanner.pause();
+        mScanner.endSession();
     }
 
     @Override
@@ -566,6 +551,7 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen screen, Preference preference) {
+        mScanner.onUserInteraction();
         if (preference instanceof AccessPoint) {
             mSelectedAccessPoint = (AccessPoint) preference;
             /** Bypass dialog for unsecured, unsaved, and inactive networks */
@@ -638,6 +624,14 @@ public class WifiSettings extends RestrictedSettingsFragment
      * the strength of network and the security for it.
      */
     private void updateAccessPoints() {
+        updateAccessPoints(null);
+    }
+
+    /**
+     * Same as {@link #updateAccessPoints()}, with the scan results if they were just fetched,
+     * or null to fetch them when needed.
+     */
+    private void updateAccessPoints(List<ScanResult> results) {
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
 
@@ -652,21 +646,8 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints =
-                        constructAccessPoints(getActivity(), mWifiManager, mLastInfo,
-                                mLastNetworkInfo);
-                getPreferenceScreen().removeAll();
-                if (accessPoints.size() == 0) {
-                    addMessagePreference(R.string.wifi_empty_list_wifi_on);
-                }
-
-                for (AccessPoint accessPoint : accessPoints) {
-                    // Ignore access points that are out of range.
-                    if (accessPoint.getLevel() != -1) {
-                        getPreferenceScreen().addPreference(accessPoint);
-                    }
-                }
+                updateAccessPointPreferences(
+                        results != null ? results : mWifiManager.getScanResults());
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
@@ -683,6 +664,93 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    /**
+     * Update the access points shown from the latest scan results. The preferences shown are
+     * kept for the networks still in range and only updated, so that a new scan does not
+     * rebuild the whole list.
+     */
+    private void updateAccessPointPreferences(List<ScanResult> results) {
+        final PreferenceScreen screen = getPreferenceScreen();
+        final int count = screen.getPreferenceCount();
+        final List<Preference> shown = new ArrayList<Preference>(count);
+        // Access points shown, by match key.
+        final HashMap<String, AccessPoint> reusable = new HashMap<String, AccessPoint>();
+        for (int i = 0; i < count; i++) {
+            final Preference preference = screen.getPreference(i);
+            shown.add(preference);
+            if (preference instanceof AccessPoint) {
+                final AccessPoint accessPoint = (AccessPoint) preference;
+                reusable.put(accessPoint.getMatchKey(), accessPoint);
+            }
+        }
+
+        final List<AccessPoint> accessPoints = constructAccessPoints(getActivity(),
+                mWifiManager.getConfiguredNetworks(), results, mLastInfo, mLastNetworkInfo,
+                reusable);
+        if (accessPoints.size() == 0) {
+            addMessagePreference(R.string.wifi_empty_list_wifi_on);
+            return;
+        }
+
+        final int update = getShownUpdate(shown, accessPoints);
+        if (update == SHOWN_REBUILD) {
+            screen.removeAll();
+        }
+        final Set<Preference> wasShown =
+                Collections.newSetFromMap(new IdentityHashMap<Preference, Boolean>());
+        wasShown.addAll(shown);
+        AccessPoint lastAdded = null;
+        for (AccessPoint accessPoint : accessPoints) {
+            // Ignore access points that are out of range.
+            if (accessPoint.getLevel() != -1
+                    && (update == SHOWN_REBUILD || !wasShown.contains(accessPoint))) {
+                screen.addPreference(accessPoint);
+                lastAdded = accessPoint;
+            }
+        }
+        if (update == SHOWN_RESORT) {
+            // Signal changes do not move the access points on the screen, sort it again.
+            (lastAdded != null ? lastAdded : accessPoints.get(0)).notifyRankChanged();
+        }
+    }
+
+    /**
+     * Return how the preferences shown, in screen order, must be updated to show the given
+     * sorted access points: {@link #SHOWN_ADD} when the access points shown are all reused and
+     * still in order, {@link #SHOWN_RESORT} when they are reused but their rank changed, and
+     * {@link #SHOWN_REBUILD} otherwise. Removing a single AccessPoint from the screen is not
+     * safe since equals() compares the rank, so whatever was not reused or went out of range
+     * makes the list rebuilt.
+     */
+    static int getShownUpdate(List<Preference> shown, List<AccessPoint> accessPoints) {
+        final Set<Preference> reused =
+                Collections.newSetFromMap(new IdentityHashMap<Preference, Boolean>());
+        for (AccessPoint accessPoint : accessPoints) {
+            if (accessPoint.getLevel() != -1) {
+                reused.add(accessPoint);
+            }
+        }
+        final Set<Preference> wasShown =
+                Collections.newSetFromMap(new IdentityHashMap<Preference, Boolean>());
+        final HashSet<String> keys = new HashSet<String>();
+        for (Preference preference : shown) {
+            if (!reused.contains(preference)
+                    || !keys.add(((AccessPoint) preference).getMatchKey())) {
+                return SHOWN_REBUILD;
+            }
+            wasShown.add(preference);
+        }
+
+        // The access points shown must come in the same order in the sorted list.
+        int position = 0;
+        for (AccessPoint accessPoint : accessPoints) {
+            if (wasShown.contains(accessPoint) && accessPoint != shown.get(position++)) {
+                return SHOWN_RESORT;
+            }
+        }
+        return SHOWN_ADD;
+    }
+
     protected TextView initEmptyView() {
         TextView emptyView = (TextView) getActivity().findViewById(android.R.id.empty);
         getListView().setEmptyView(emptyView);
@@ -714,15 +782,26 @@ public class WifiSettings extends RestrictedSettingsFragment
         getPreferenceScreen().removeAll();
     }
 
-    /** Returns sorted list of access points */
     private static List<AccessPoint> constructAccessPoints(Context context,
-            WifiManager wifiManager, WifiInfo lastInfo, NetworkInfo lastNetworkInfo) {
+            WifiManager wifiManager, WifiInfo lastInfo, NetworkInfo lastNetworkInfo,
+            HashMap<String, AccessPoint> reusable) {
+        return constructAccessPoints(context, wifiManager.getConfiguredNetworks(),
+                wifiManager.getScanResults(), lastInfo, lastNetworkInfo, reusable);
+    }
+
+    /**
+     * Returns sorted list of access points for the configured networks and scan results. The
+     * access points of reusable matching a network are reloaded and returned instead of new
+     * ones, and removed from it.
+     */
+    static List<AccessPoint> constructAccessPoints(Context context,
+            List<WifiConfiguration> configs, List<ScanResult> results, WifiInfo lastInfo,
+            NetworkInfo lastNetworkInfo, HashMap<String, AccessPoint> reusable) {
         ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
         /** Lookup table to more quickly update AccessPoints by only considering objects with the
          * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
         Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
 
-        final List<WifiConfiguration> configs = wifiManager.getConfiguredNetworks();
         if (configs != null) {
             // Update "Saved Networks" menu option.
             if (savedNetworksExist != (configs.size() > 0)) {
@@ -735,16 +814,22 @@ public class WifiSettings extends RestrictedSettingsFragment
                 if (config.selfAdded && config.numAssociation == 0) {
                     continue;
                 }
-                AccessPoint accessPoint = new AccessPoint(context, config);
-                if (lastInfo != null && lastNetworkInfo != null) {
-                    accessPoint.update(lastInfo, lastNetworkInfo);
+                AccessPoint accessPoint = reusable != null
+                        ? reusable.remove(AccessPoint.getMatchKey(config.networkId)) : null;
+                if (accessPoint != null) {
+                    accessPoint.reset(config);
+                    updateConnectionInfo(accessPoint, lastInfo, lastNetworkInfo);
+                } else {
+                    accessPoint = new AccessPoint(context, config);
+                    if (lastInfo != null && lastNetworkInfo != null) {
+                        accessPoint.update(lastInfo, lastNetworkInfo);
+                    }
                 }
                 accessPoints.add(accessPoint);
                 apMap.put(accessPoint.ssid, accessPoint);
             }
         }
 
-        final List<ScanResult> results = wifiManager.getScanResults();
         if (results != null) {
             for (ScanResult result : results) {
                 // Ignore hidden and ad-hoc networks.
@@ -759,9 +844,17 @@ public class WifiSettings extends RestrictedSettingsFragment
                         found = true;
                 }
                 if (!found) {
-                    AccessPoint accessPoint = new AccessPoint(context, result);
-                    if (lastInfo != null && lastNetworkInfo != null) {
-                        accessPoint.update(lastInfo, lastNetworkInfo);
+                    AccessPoint accessPoint = reusable != null
+                            ? reusable.remove(AccessPoint.getMatchKey(result.SSID,
+                                    AccessPoint.getSecurity(result))) : null;
+                    if (accessPoint != null) {
+                        accessPoint.reset(result);
+                        updateConnectionInfo(accessPoint, lastInfo, lastNetworkInfo);
+                    } else {
+                        accessPoint = new AccessPoint(context, result);
+                        if (lastInfo != null && lastNetworkInfo != null) {
+                            accessPoint.update(lastInfo, lastNetworkInfo);
+                        }
                     }
                     accessPoints.add(accessPoint);
                     apMap.put(accessPoint.ssid, accessPoint);
@@ -774,13 +867,26 @@ public class WifiSettings extends RestrictedSettingsFragment
         return accessPoints;
     }
 
+    // A reused access point keeps its connection info, clear it if there is none anymore.
+    private static void updateConnectionInfo(AccessPoint accessPoint, WifiInfo lastInfo,
+            NetworkInfo lastNetworkInfo) {
+        if (lastInfo != null && lastNetworkInfo != null) {
+            accessPoint.update(lastInfo, lastNetworkInfo);
+        } else {
+            accessPoint.update(null, null);
+        }
+    }
+
     private void handleEvent(Intent intent) {
         String action = intent.getAction();
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             updateWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN));
-        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
-                WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            final List<ScanResult> results = mWifiManager.getScanResults();
+            mScanner.onScanResults(results);
+            updateAccessPoints(results);
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
                 updateAccessPoints();
         } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
@@ -1002,7 +1108,7 @@ public class WifiSettings extends RestrictedSettingsFragment
                 WifiManager wifiManager =
                         (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
                 final Collection<AccessPoint> accessPoints =
-                        constructAccessPoints(context, wifiManager, null, null);
+                        constructAccessPoints(context, wifiManager, null, null, null);
                 for (AccessPoint accessPoint : accessPoints) {
                     // We are indexing only the saved Wi-Fi networks.
                     if (accessPoint.getConfig() == null) continue;
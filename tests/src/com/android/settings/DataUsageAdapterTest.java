@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.content.Context;
+import android.net.NetworkStats;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary.AppItem;
+import com.android.settings.DataUsageSummary.DataUsageAdapter;
+import com.android.settings.net.UidDetailProvider;
+
+/**
+ * Binds synthetic {@link NetworkStats} with thousands of uid/set/tag rows to
+ * {@link DataUsageAdapter}, checks the items it collapses them into, and times the bind
+ * done each time the summary of all uids is loaded again.
+ */
+public class DataUsageAdapterTest extends AndroidTestCase {
+    private static final String TAG = "DataUsageAdapterTest";
+
+    private static final int APPS = 400;
+    private static final int[] TAGS = { TAG_NONE, 0x1, 0x2, 0x3 };
+    private static final int[] SETS = { SET_DEFAULT, SET_FOREGROUND };
+    private static final long ROW_BYTES = 1000;
+
+    private static final int WARM_UP_BINDS = 5;
+    private static final int BINDS = 50;
+
+    private DataUsageAdapter mAdapter;
+    private NetworkStats mStats;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getContext();
+        mAdapter = new DataUsageAdapter(
+                (UserManager) context.getSystemService(Context.USER_SERVICE),
+                new UidDetailProvider(context), 0);
+        mStats = buildStats();
+    }
+
+    public void testBindCollapsesRows() {
+        mAdapter.bindStats(mStats, new int[0]);
+
+        // Every app on its own; the system uids, removed apps and tethering collapsed.
+        int apps = 0;
+        long total = 0;
+        for (int i = 0; i < mAdapter.getCount(); i++) {
+            final AppItem item = (AppItem) mAdapter.getItem(i);
+            if (item.category == AppItem.CATEGORY_APP) {
+                apps++;
+                total += item.total;
+            }
+        }
+        assertEquals(APPS + 3, apps);
+        assertEquals(mStats.size() * ROW_BYTES * 2, total);
+    }
+
+    @LargeTest
+    public void testBindTime() {
+        for (int i = 0; i < WARM_UP_BINDS; i++) {
+            mAdapter.bindStats(mStats, new int[0]);
+        }
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BINDS; i++) {
+                mAdapter.bindStats(mStats, new int[0]);
+            }
+            final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+            final int allocs = Debug.getThreadAllocCount();
+            Log.i(TAG, "bindStats of " + mStats.size() + " rows into " + mAdapter.getCount()
+                    + " items: " + (nanos / BINDS / 1000) + "us, " + (allocs / BINDS)
+                    + " objects per bind");
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * One row per app, set and tag of the current user, plus a few system, removed and
+     * tethering rows, as the summary of a busy cycle.
+     */
+    private static NetworkStats buildStats() {
+        final int userId = UserHandle.myUserId();
+        final int[] otherUids = { Process.SYSTEM_UID, Process.MEDIA_UID, UID_REMOVED,
+                UID_TETHERING };
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(),
+                (APPS + otherUids.length) * SETS.length * TAGS.length);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.iface = "test0";
+        entry.rxBytes = ROW_BYTES;
+        entry.txBytes = ROW_BYTES;
+        for (int i = 0; i < APPS + otherUids.length; i++) {
+            entry.uid = i < APPS ? UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + i)
+                    : otherUids[i - APPS];
+            for (int set : SETS) {
+                for (int tag : TAGS) {
+                    entry.set = set;
+                    entry.tag = tag;
+                    stats.addValues(entry);
+                }
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Application;
+import android.content.pm.PackageStats;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times the computation of every package size with one and with several requests in
+ * flight, how long {@link ApplicationsState#prioritizeSize} keeps the main thread while
+ * the loader is busy, and how long lookups wait for mEntriesMap while sizes are reported.
+ */
+public class ApplicationsStateSizesTest extends AndroidTestCase {
+    private static final String TAG = "ApplicationsStateSizesTest";
+
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final int LOOKUPS = 20000;
+
+    private ApplicationsState mState;
+    private ApplicationsState.Session mSession;
+    private volatile CountDownLatch mAllSizesComputed;
+
+    private final ApplicationsState.Callbacks mCallbacks = new ApplicationsState.Callbacks() {
+        @Override
+        public void onRunningStateChanged(boolean running) {
+        }
+
+        @Override
+        public void onPackageListChanged() {
+        }
+
+        @Override
+        public void onRebuildComplete(ArrayList<AppEntry> apps) {
+        }
+
+        @Override
+        public void onEntriesChanged(ArrayList<ApplicationsState.ListChange> changes) {
+        }
+
+        @Override
+        public void onPackageIconChanged() {
+        }
+
+        @Override
+        public void onPackageSizeChanged(String packageName) {
+        }
+
+        @Override
+        public void onAllSizesComputed() {
+            mAllSizesComputed.countDown();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The state creates its handler on the calling thread: make sure it is the main one.
+        final CountDownLatch created = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mState = ApplicationsState.getInstance(
+                        (Application) getContext().getApplicationContext());
+                created.countDown();
+            }
+        });
+        assertTrue(created.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        mSession = mState.newSession(mCallbacks);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSession.release();
+        mState.mMaxSizeRequests = ApplicationsState.MAX_SIZE_REQUESTS;
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testConcurrentSizeRequestsTime() throws Exception {
+        // Loads the entries, labels and icons once, the runs below only differ by sizes.
+        computeAllSizes(ApplicationsState.MAX_SIZE_REQUESTS);
+
+        final long serialMillis = computeAllSizes(1);
+        final long concurrentMillis = computeAllSizes(ApplicationsState.MAX_SIZE_REQUESTS);
+        Log.i(TAG, "all sizes: " + serialMillis + "ms with 1 request in flight, "
+                + concurrentMillis + "ms with " + ApplicationsState.MAX_SIZE_REQUESTS);
+    }
+
+    @LargeTest
+    public void testPrioritizeSizeWhileComputing() throws Exception {
+        computeAllSizes(ApplicationsState.MAX_SIZE_REQUESTS);
+
+        final List<AppEntry> entries = mState.mAppEntriesCopy;
+        assertFalse(entries.isEmpty());
+
+        mAllSizesComputed = new CountDownLatch(1);
+        mSession.resume();
+        long calls = 0;
+        long totalNanos = 0;
+        long worstNanos = 0;
+        // Binds and scraps every row over and over, like a fling, until the loader is done.
+        while (mAllSizesComputed.getCount() > 0) {
+            for (int i = 0; i < entries.size(); i++) {
+                final AppEntry entry = entries.get(i);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                mState.prioritizeSize(entry);
+                mState.deprioritizeSize(entry);
+                final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+                totalNanos += nanos;
+                worstNanos = Math.max(worstNanos, nanos);
+                calls++;
+            }
+        }
+        mSession.pause();
+
+        Log.i(TAG, "prioritizeSize while computing: " + calls + " calls, "
+                + (totalNanos / calls) + "ns average, " + (worstNanos / 1000) + "us worst");
+    }
+
+    @LargeTest
+    public void testEntriesLockContention() throws Exception {
+        computeAllSizes(ApplicationsState.MAX_SIZE_REQUESTS);
+        final List<AppEntry> entries = mState.mAppEntriesCopy;
+        assertFalse(entries.isEmpty());
+
+        try {
+            final long[] global = timeLookupsWhileReportingSizes(entries, true);
+            final long[] narrow = timeLookupsWhileReportingSizes(entries, false);
+            Log.i(TAG, "lookups while sizes are reported: " + (global[0] / LOOKUPS) + "ns average, "
+                    + (global[1] / 1000) + "us worst holding mEntriesMap for each update, "
+                    + (narrow[0] / LOOKUPS) + "ns average, " + (narrow[1] / 1000)
+                    + "us worst holding only the entry");
+        } finally {
+            // The sizes reported were made up: compute, and save, the real ones again.
+            computeAllSizes(ApplicationsState.MAX_SIZE_REQUESTS);
+        }
+    }
+
+    /**
+     * Looks entries up, and sums the cache sizes, while another thread reports new sizes
+     * for all of them, either with the size callback as is or holding mEntriesMap around
+     * it as the callback used to.  Returns the total and the worst time in nanoseconds.
+     */
+    private long[] timeLookupsWhileReportingSizes(final List<AppEntry> entries,
+            final boolean holdEntriesMap) throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread reporter = new Thread(TAG) {
+            @Override
+            public void run() {
+                long n = 0;
+                while (!done.get()) {
+                    final PackageStats stats = new PackageStats(
+                            entries.get((int) (n % entries.size())).info.packageName);
+                    // Changes every time, so the sizes are formatted again.
+                    stats.codeSize = ++n;
+                    if (holdEntriesMap) {
+                        synchronized (mState.mEntriesMap) {
+                            reportSize(stats);
+                        }
+                    } else {
+                        reportSize(stats);
+                    }
+                }
+            }
+        };
+        reporter.start();
+
+        long totalNanos = 0;
+        long worstNanos = 0;
+        try {
+            for (int i = 0; i < LOOKUPS; i++) {
+                final String packageName = entries.get(i % entries.size()).info.packageName;
+                final long start = SystemClock.elapsedRealtimeNanos();
+                assertNotNull(mState.getEntry(packageName));
+                if (i % entries.size() == 0) {
+                    mState.sumCacheSizes();
+                }
+                final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+                totalNanos += nanos;
+                worstNanos = Math.max(worstNanos, nanos);
+            }
+        } finally {
+            done.set(true);
+            reporter.join();
+        }
+        return new long[] { totalNanos, worstNanos };
+    }
+
+    private void reportSize(PackageStats stats) {
+        try {
+            mState.mBackgroundHandler.mStatsObserver.onGetStatsCompleted(stats, true);
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long computeAllSizes(int maxSizeRequests) throws InterruptedException {
+        mState.mMaxSizeRequests = maxSizeRequests;
+        mAllSizesComputed = new CountDownLatch(1);
+        final long start = SystemClock.elapsedRealtime();
+        // Resuming marks every size already known stale.
+        mSession.resume();
+        assertTrue("sizes not computed",
+                mAllSizesComputed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        mSession.pause();
+        return elapsed;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the changes {@link RunningState} hands to the running processes view, and that
+ * taking them allocates nothing in the steady state.
+ */
+public class RunningStateAllocationTest extends AndroidTestCase {
+    private static final String TAG = "RunningStateAllocationTest";
+
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final int WARM_UP_UPDATES = 3;
+    private static final int UPDATES = 10;
+
+    @SmallTest
+    public void testAddedThenRemovedItemCancelsOut() {
+        final RunningState.ItemChanges changes = new RunningState.ItemChanges();
+        final RunningState.MergedItem item = new RunningState.MergedItem(0);
+
+        changes.added(item);
+        changes.changed(item);
+        assertEquals(1, changes.mAdded.size());
+        assertEquals(0, changes.mChanged.size());
+
+        changes.removed(item);
+        assertTrue(changes.isEmpty());
+    }
+
+    @SmallTest
+    public void testRemovedThenAddedItemIsChanged() {
+        final RunningState.ItemChanges changes = new RunningState.ItemChanges();
+        final RunningState.MergedItem item = new RunningState.MergedItem(0);
+
+        changes.removed(item);
+        changes.added(item);
+        assertEquals(0, changes.mAdded.size());
+        assertEquals(0, changes.mRemoved.size());
+        assertEquals(1, changes.mChanged.size());
+    }
+
+    @SmallTest
+    public void testRecordListDifferences() {
+        final RunningState.MergedItem kept = new RunningState.MergedItem(0);
+        final RunningState.MergedItem removed = new RunningState.MergedItem(0);
+        final RunningState.MergedItem added = new RunningState.MergedItem(0);
+        final RunningState.MergedItem hidden = new RunningState.MergedItem(0);
+        final ArrayList<RunningState.MergedItem> oldItems
+                = new ArrayList<RunningState.MergedItem>();
+        oldItems.add(kept);
+        oldItems.add(removed);
+        final ArrayList<RunningState.MergedItem> newItems
+                = new ArrayList<RunningState.MergedItem>();
+        newItems.add(added);
+        newItems.add(kept);
+        final ArrayList<RunningState.MergedItem> updated = new ArrayList<RunningState.MergedItem>();
+        updated.add(kept);
+        // Merged in a user item, not in the list itself.
+        updated.add(hidden);
+
+        final RunningState.ItemChanges changes = new RunningState.ItemChanges();
+        assertTrue(changes.record(oldItems, newItems, updated));
+        assertEquals(1, changes.mAdded.size());
+        assertSame(added, changes.mAdded.get(0));
+        assertEquals(1, changes.mRemoved.size());
+        assertSame(removed, changes.mRemoved.get(0));
+        assertEquals(1, changes.mChanged.size());
+        assertSame(kept, changes.mChanged.get(0));
+
+        final RunningState.ItemChanges taken = new RunningState.ItemChanges();
+        changes.moveTo(taken);
+        assertTrue(changes.isEmpty());
+        assertEquals(3, taken.mAdded.size() + taken.mRemoved.size() + taken.mChanged.size());
+
+        assertFalse(changes.record(newItems, newItems, new ArrayList<RunningState.MergedItem>()));
+    }
+
+    @LargeTest
+    public void testSteadyStateAllocations() throws Exception {
+        final RunningState state = getStateOnMainThread();
+        final RunningState.ItemChanges changes = new RunningState.ItemChanges();
+        final ArrayList<RunningState.MergedItem> noItems = new ArrayList<RunningState.MergedItem>();
+
+        // The first updates load the processes, services and their labels.
+        for (int i = 0; i < WARM_UP_UPDATES; i++) {
+            state.update(state.mApplicationContext, state.mAm);
+        }
+        state.takeItemChanges(changes);
+
+        Debug.startAllocCounting();
+        try {
+            // What the view does on every refresh when nothing changed.
+            final ArrayList<RunningState.MergedItem> items = state.getCurrentMergedItems();
+            Debug.resetThreadAllocCount();
+            state.takeItemChanges(changes);
+            changes.record(items, items, noItems);
+            final int refreshAllocs = Debug.getThreadAllocCount();
+            assertEquals("taking no change allocated", 0, refreshAllocs);
+
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < UPDATES; i++) {
+                state.update(state.mApplicationContext, state.mAm);
+            }
+            final int updateAllocs = Debug.getThreadAllocCount();
+            final int updateBytes = Debug.getThreadAllocSize();
+            state.takeItemChanges(changes);
+            Log.i(TAG, "steady state update: " + (updateAllocs / UPDATES) + " objects, "
+                    + (updateBytes / UPDATES) + " bytes; changes since: "
+                    + changes.mAdded.size() + " added, " + changes.mRemoved.size()
+                    + " removed, " + changes.mChanged.size() + " changed");
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private RunningState getStateOnMainThread() throws InterruptedException {
+        // The state creates its UI handler on the calling thread.
+        final RunningState[] state = new RunningState[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                state[0] = RunningState.getInstance(getContext());
+                created.countDown();
+            }
+        });
+        assertTrue(created.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return state[0];
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.view.View.MeasureSpec;
+
+import java.util.Random;
+
+/**
+ * Checks the path decimation of {@link ChartNetworkSeriesView} and measures how long it takes
+ * to regenerate the path of a year of hourly history while the vertical axis changes.
+ */
+public class ChartNetworkSeriesViewTest extends AndroidTestCase {
+    private static final String TAG = "ChartNetworkSeriesViewTest";
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int BUCKET_COUNT = 365 * 24;
+    private static final int FRAME_COUNT = 100;
+
+    private static final long START = 1388534400000L;
+    private static final long END = START + BUCKET_COUNT * DateUtils.HOUR_IN_MILLIS;
+
+    private NetworkStatsHistory mHistory;
+    private long[] mCumulative;
+    private ChartAxis mHoriz;
+    private ChartAxis mVert;
+    private ChartNetworkSeriesView mSeries;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // a year of hourly buckets, mostly idle hours with a few busy ones
+        final Random random = new Random(42);
+        mHistory = new NetworkStatsHistory(DateUtils.HOUR_IN_MILLIS, BUCKET_COUNT);
+        mCumulative = new long[BUCKET_COUNT + 1];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long bytes = 1 + (random.nextInt(10) == 0
+                    ? random.nextInt(50 * 1024 * 1024) : random.nextInt(1024));
+            final long start = START + i * DateUtils.HOUR_IN_MILLIS;
+            mHistory.recordData(start, start + DateUtils.HOUR_IN_MILLIS,
+                    new NetworkStats.Entry(bytes / 2, 0, bytes - bytes / 2, 0, 0));
+            mCumulative[i + 1] = mCumulative[i] + bytes;
+        }
+
+        mHoriz = new ChartDataUsageView.TimeAxis();
+        mHoriz.setBounds(START, END);
+        mHoriz.setSize(WIDTH);
+        mVert = new ChartDataUsageView.DataAxis();
+        mVert.setBounds(0, mCumulative[BUCKET_COUNT]);
+        mVert.setSize(HEIGHT);
+
+        mSeries = new ChartNetworkSeriesView(getContext());
+        mSeries.init(mHoriz, mVert);
+        mSeries.setBounds(START, END);
+        mSeries.bindNetworkStats(mHistory);
+    }
+
+    /**
+     * The decimated path must reach, in each pixel column, the highest total the path with
+     * one vertex per bucket reaches in that column.
+     */
+    public void testDecimatedPathKeepsColumnMaximum() {
+        final int size = mHistory.size();
+        assertEquals(BUCKET_COUNT, size);
+
+        final long[] expected = new long[WIDTH + 2];
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = mHistory.getValues(i, entry);
+            final int column = getColumn(entry.bucketStart + entry.bucketDuration);
+            expected[column] = Math.max(expected[column], mCumulative[i + 1]);
+        }
+
+        final int segmentCount = mSeries.computeSegments(0, size - 1, WIDTH);
+        assertTrue("not decimated: " + segmentCount, segmentCount < size);
+
+        final long[] actual = new long[WIDTH + 2];
+        int last = 0;
+        for (int n = 0; n < segmentCount; n++) {
+            final int next = mSeries.getSegmentEnd(n);
+            assertTrue("segments out of order at " + n, next > last);
+            entry = mHistory.getValues(next - 1, entry);
+            final int column = getColumn(entry.bucketStart + entry.bucketDuration);
+            actual[column] = Math.max(actual[column], mCumulative[next]);
+            last = next;
+        }
+        assertEquals("buckets left out of the path", size, last);
+
+        for (int column = 0; column < expected.length; column++) {
+            assertEquals("column " + column, expected[column], actual[column]);
+        }
+    }
+
+    /**
+     * Without more buckets than pixels, each bucket is its own segment.
+     */
+    public void testNotDecimatedWhenFewerBucketsThanPixels() {
+        final int segmentCount = mSeries.computeSegments(0, WIDTH / 2 - 1, WIDTH);
+        assertEquals(WIDTH / 2, segmentCount);
+        for (int n = 0; n < segmentCount; n++) {
+            assertEquals(n + 1, mSeries.getSegmentEnd(n));
+        }
+    }
+
+    /**
+     * Regenerates and draws the path of a year of hourly history for each step of a
+     * vertical axis sweep, as while dragging a sweep, and reports the average frame time.
+     */
+    @LargeTest
+    public void testYearOfHourlyHistoryFrameTime() {
+        mSeries.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY));
+        mSeries.layout(0, 0, WIDTH, HEIGHT);
+
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        try {
+            final long total = mCumulative[BUCKET_COUNT];
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                mVert.setBounds(0, total + total * i / FRAME_COUNT);
+                mSeries.invalidatePath();
+                mSeries.draw(canvas);
+            }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+            assertEquals(total, mSeries.getMaxVisible());
+            Log.i(TAG, "Year of hourly history: " + (elapsed / FRAME_COUNT / 1000)
+                    + " us per frame over " + FRAME_COUNT + " frames");
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Return the pixel column where the series reaches the given time, the same way
+     * {@link ChartNetworkSeriesView#computeSegments} groups the buckets.
+     */
+    private int getColumn(long time) {
+        return Math.max(1, (int) Math.ceil(mHoriz.convertToPoint(time)));
+    }
+}
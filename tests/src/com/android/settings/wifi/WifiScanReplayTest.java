@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiConfiguration.KeyMgmt;
+import android.net.wifi.WifiSsid;
+import android.os.SystemClock;
+import android.preference.Preference;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays sequences of scan results through {@link WifiSettings#constructAccessPoints} and
+ * checks which access points are reused, and when the list shown is only added to, sorted
+ * again or rebuilt, and how long a dense office scan sequence takes to replay.
+ */
+public class WifiScanReplayTest extends AndroidTestCase {
+    private static final String TAG = "WifiScanReplayTest";
+
+    private static final int HOME_NETWORK_ID = 3;
+
+    // Dense office: several access points per network, a few of them saved.
+    private static final int DENSE_NETWORK_COUNT = 40;
+    private static final int DENSE_BSSIDS_PER_NETWORK = 3;
+    private static final int DENSE_SAVED_NETWORK_COUNT = 4;
+    private static final int DENSE_SCAN_COUNT = 60;
+
+    private List<WifiConfiguration> mConfigs;
+
+    // Preferences shown, in screen order.
+    private List<Preference> mShown;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConfigs = new ArrayList<WifiConfiguration>();
+        mShown = new ArrayList<Preference>();
+    }
+
+    public void testSameScanReusesEveryAccessPoint() {
+        List<AccessPoint> first = replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50),
+                scanResult("library", "00:00:00:00:00:02", -70));
+        assertShown("cafe", "library");
+
+        List<AccessPoint> second = replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50),
+                scanResult("library", "00:00:00:00:00:02", -70));
+        assertSame(first.get(0), second.get(0));
+        assertSame(first.get(1), second.get(1));
+        assertShown("cafe", "library");
+    }
+
+    public void testNewNetworkIsAddedToShownOnes() {
+        List<AccessPoint> first = replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50));
+
+        List<AccessPoint> second = replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50),
+                scanResult("airport", "00:00:00:00:00:03", -40));
+        assertSame(first.get(0), second.get(1));
+        assertShown("airport", "cafe");
+    }
+
+    public void testSignalChangeSortsAgain() {
+        List<AccessPoint> first = replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50),
+                scanResult("library", "00:00:00:00:00:02", -70));
+
+        List<AccessPoint> second = replay(WifiSettings.SHOWN_RESORT,
+                scanResult("cafe", "00:00:00:00:00:01", -80),
+                scanResult("library", "00:00:00:00:00:02", -40));
+        assertSame(first.get(0), second.get(1));
+        assertSame(first.get(1), second.get(0));
+        assertShown("library", "cafe");
+    }
+
+    public void testSignalChangeWithinRankDoesNotSort() {
+        replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50),
+                scanResult("library", "00:00:00:00:00:02", -70));
+
+        replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -55),
+                scanResult("library", "00:00:00:00:00:02", -65));
+        assertShown("cafe", "library");
+    }
+
+    public void testNetworkGoneRebuilds() {
+        List<AccessPoint> first = replay(WifiSettings.SHOWN_ADD,
+                scanResult("cafe", "00:00:00:00:00:01", -50),
+                scanResult("library", "00:00:00:00:00:02", -70));
+
+        List<AccessPoint> second = replay(WifiSettings.SHOWN_REBUILD,
+                scanResult("library", "00:00:00:00:00:02", -70));
+        assertSame(first.get(1), second.get(0));
+        assertShown("library");
+    }
+
+    public void testSavedNetworkOutOfRangeRebuilds() {
+        mConfigs.add(config(HOME_NETWORK_ID, "home"));
+        List<AccessPoint> first = replay(WifiSettings.SHOWN_ADD,
+                scanResult("home", "00:00:00:00:00:04", -60),
+                scanResult("cafe", "00:00:00:00:00:01", -50));
+        assertShown("home", "cafe");
+
+        // The saved network is still listed, but out of range, so it is no longer shown.
+        List<AccessPoint> second = replay(WifiSettings.SHOWN_REBUILD,
+                scanResult("cafe", "00:00:00:00:00:01", -50));
+        assertSame(first.get(0), second.get(1));
+        assertEquals(-1, second.get(1).getLevel());
+        assertShown("cafe");
+
+        // Back in range, it is added again before the unsaved network, which is kept.
+        List<AccessPoint> third = replay(WifiSettings.SHOWN_ADD,
+                scanResult("home", "00:00:00:00:00:04", -60),
+                scanResult("cafe", "00:00:00:00:00:01", -50));
+        assertSame(second.get(0), third.get(1));
+        assertShown("home", "cafe");
+    }
+
+    public void testMessageShownRebuilds() {
+        mShown.add(new Preference(getContext()));
+        replay(WifiSettings.SHOWN_REBUILD,
+                scanResult("cafe", "00:00:00:00:00:01", -50));
+        assertShown("cafe");
+    }
+
+    /**
+     * Replays a dense sequence of scans, with 120 BSSIDs coming and going and their signal
+     * varying between scans, and reports the average time spent per scan building the access
+     * points and finding how to update the ones shown.
+     */
+    @LargeTest
+    public void testDenseScanSequenceReplayTime() {
+        final List<List<ScanResult>> scans = recordDenseScans();
+
+        final int[] updates = new int[3];
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (List<ScanResult> results : scans) {
+            final List<AccessPoint> accessPoints = WifiSettings.constructAccessPoints(
+                    getContext(), mConfigs, results, null, null, getReusable());
+            updates[WifiSettings.getShownUpdate(mShown, accessPoints)]++;
+            show(accessPoints);
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertFalse(mShown.isEmpty());
+        Log.i(TAG, "Dense scan replay: " + (elapsed / scans.size() / 1000) + " us per scan over "
+                + scans.size() + " scans, " + updates[WifiSettings.SHOWN_ADD] + " add, "
+                + updates[WifiSettings.SHOWN_RESORT] + " resort, "
+                + updates[WifiSettings.SHOWN_REBUILD] + " rebuild");
+    }
+
+    /**
+     * Build the access points of a scan the way WifiSettings does, check how the preferences
+     * shown must be updated, and update them.
+     */
+    private List<AccessPoint> replay(int expectedUpdate, ScanResult... results) {
+        final List<AccessPoint> accessPoints = WifiSettings.constructAccessPoints(getContext(),
+                mConfigs, Arrays.asList(results), null, null, getReusable());
+        assertEquals(expectedUpdate, WifiSettings.getShownUpdate(mShown, accessPoints));
+        show(accessPoints);
+        return accessPoints;
+    }
+
+    private HashMap<String, AccessPoint> getReusable() {
+        final HashMap<String, AccessPoint> reusable = new HashMap<String, AccessPoint>();
+        for (Preference preference : mShown) {
+            if (preference instanceof AccessPoint) {
+                final AccessPoint accessPoint = (AccessPoint) preference;
+                reusable.put(accessPoint.getMatchKey(), accessPoint);
+            }
+        }
+        return reusable;
+    }
+
+    private void show(List<AccessPoint> accessPoints) {
+        // Whatever the update, the screen ends up showing the sorted access points in range.
+        mShown.clear();
+        for (AccessPoint accessPoint : accessPoints) {
+            if (accessPoint.getLevel() != -1) {
+                mShown.add(accessPoint);
+            }
+        }
+    }
+
+    /**
+     * Return a dense scan sequence, the same on each run: each BSSID is seen by most scans, at
+     * a signal varying around its own level. Also saves the first networks.
+     */
+    private List<List<ScanResult>> recordDenseScans() {
+        for (int i = 0; i < DENSE_SAVED_NETWORK_COUNT; i++) {
+            mConfigs.add(config(i + 1, "office-" + i));
+        }
+
+        final Random random = new Random(42);
+        final int bssidCount = DENSE_NETWORK_COUNT * DENSE_BSSIDS_PER_NETWORK;
+        final int[] levels = new int[bssidCount];
+        for (int i = 0; i < bssidCount; i++) {
+            levels[i] = -45 - random.nextInt(45);
+        }
+
+        final List<List<ScanResult>> scans = new ArrayList<List<ScanResult>>(DENSE_SCAN_COUNT);
+        for (int n = 0; n < DENSE_SCAN_COUNT; n++) {
+            final List<ScanResult> results = new ArrayList<ScanResult>(bssidCount);
+            for (int i = 0; i < bssidCount; i++) {
+                if (random.nextInt(10) == 0) {
+                    continue;
+                }
+                final String ssid = "office-" + (i / DENSE_BSSIDS_PER_NETWORK);
+                final String bssid = String.format("00:11:22:33:%02x:%02x", i >> 8, i & 0xff);
+                results.add(scanResult(ssid, bssid, levels[i] + random.nextInt(9) - 4));
+            }
+            scans.add(results);
+        }
+        return scans;
+    }
+
+    private void assertShown(String... ssids) {
+        final List<String> shown = new ArrayList<String>();
+        for (Preference preference : mShown) {
+            shown.add(((AccessPoint) preference).ssid);
+        }
+        assertEquals(Arrays.asList(ssids), shown);
+    }
+
+    private static ScanResult scanResult(String ssid, String bssid, int level) {
+        return new ScanResult(WifiSsid.createFromAsciiEncoded(ssid), bssid, "[ESS]", level,
+                2412, 0);
+    }
+
+    private static WifiConfiguration config(int networkId, String ssid) {
+        final WifiConfiguration config = new WifiConfiguration();
+        config.networkId = networkId;
+        config.SSID = "\"" + ssid + "\"";
+        config.allowedKeyManagement.set(KeyMgmt.NONE);
+        return config;
+    }
+}